@@ -0,0 +1,87 @@
+package clsqt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//rectSearchBatch and kNearestBatch against asking for the same queries one at a time, in the order they came
+//A batch is BATCH queries scattered over a spread-sized patch around a data point, like the tiles of a map view or the players in one region
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx12g"})
+@State(Scope.Benchmark)
+public class BatchQueryBenchmark {
+    static final int POW_TWO = 16;
+    static final int DIM = 1 << POW_TWO;
+    static final int BATCHES = 64;
+    static final int BATCH = 1000;
+    static final int WINDOW = 128;
+    static final int K = 8;
+
+    @Param({"100000", "1000000"})
+    int size;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    Workload workload;
+
+    @Param({"1024", "16384"})
+    int spread;
+
+    Quadtree<Point> quadtree;
+    List<Rect>[] rects;
+    List<Point>[] centers;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Point[] points = workload.generate(size, DIM, 42);
+        quadtree = new Quadtree<>(POW_TWO);
+        quadtree.bulkLoad(List.of(points));
+        Random rng = new Random(7);
+        rects = new List[BATCHES];
+        centers = new List[BATCHES];
+        for (int b = 0; b < BATCHES; b++) {
+            Point around = points[rng.nextInt(size)];
+            rects[b] = new ArrayList<>(BATCH);
+            centers[b] = new ArrayList<>(BATCH);
+            for (int i = 0; i < BATCH; i++) {
+                int x = Workload.clamp(around.getX() + rng.nextInt(spread) - spread / 2, DIM), y = Workload.clamp(around.getY() + rng.nextInt(spread) - spread / 2, DIM);
+                rects[b].add(new Rect(x, y, Workload.clamp(x + WINDOW, DIM), Workload.clamp(y + WINDOW, DIM)));
+                centers[b].add(new Point(x, y));
+            }
+        }
+    }
+
+    @Benchmark
+    public ArrayList<ArrayList<Point>> rectSearchBatch() {
+        return quadtree.rectSearchBatch(rects[cursor++ & (BATCHES - 1)]);
+    }
+
+    @Benchmark
+    public ArrayList<ArrayList<Point>> rectSearchLoop() {
+        ArrayList<ArrayList<Point>> results = new ArrayList<>(BATCH);
+        for (Rect r : rects[cursor++ & (BATCHES - 1)]) {
+            results.add(quadtree.rectSearch(r.getXMin(), r.getYMin(), r.getXMax(), r.getYMax()));
+        }
+        return results;
+    }
+
+    @Benchmark
+    public ArrayList<ArrayList<Point>> kNearestBatch() {
+        return quadtree.kNearestBatch(centers[cursor++ & (BATCHES - 1)], K);
+    }
+
+    @Benchmark
+    public ArrayList<ArrayList<Point>> kNearestLoop() {
+        ArrayList<ArrayList<Point>> results = new ArrayList<>(BATCH);
+        for (Point p : centers[cursor++ & (BATCHES - 1)]) {
+            results.add(quadtree.kNearest(p.getX(), p.getY(), K));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,90 @@
+package clsqt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+//Readers and one writer sharing a list: ConcurrentSkiplist against Skiplist behind the global lock it replaces
+//Group sizes are a starting point - override with -tg readers,writers to match the machine
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx12g"})
+@State(Scope.Group)
+public class ConcurrentSkiplistBenchmark {
+    static final int DIM = 65536;
+    static final int PROBES = 1 << 16;
+
+    @Param({"100000", "1000000"})
+    int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "MOVING"})
+    Workload workload;
+
+    ConcurrentSkiplist<MortonIndex, Point> concurrentSkiplist;
+    Skiplist<MortonIndex, Point> lockedSkiplist;
+    MortonIndex[] present, absent;
+    Point[] points;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        points = workload.generate(size, DIM, 42);
+        concurrentSkiplist = new ConcurrentSkiplist<>(new MortonIndex(0, 0, 0), new MortonIndex(DIM - 1, DIM - 1, 0));
+        lockedSkiplist = SkiplistBenchmark.newSkiplist();
+        for (Point p : points) {
+            concurrentSkiplist.put(new MortonIndex(p, 0), p);
+            lockedSkiplist.put(new MortonIndex(p, 0), p);
+        }
+        present = new MortonIndex[PROBES];
+        absent = new MortonIndex[PROBES];
+        Random rng = new Random(7);
+        for (int i = 0; i < PROBES; i++) {
+            present[i] = new MortonIndex(points[rng.nextInt(size)], 0);
+            MortonIndex miss;
+            do {
+                miss = new MortonIndex(workload.step(points[rng.nextInt(size)], DIM, rng), 0);
+            } while (lockedSkiplist.get(miss) != null);
+            absent[i] = miss;
+        }
+    }
+
+    @Benchmark
+    @Group("concurrent")
+    @GroupThreads(7)
+    public Point concurrentGet() {
+        return concurrentSkiplist.get(present[ThreadLocalRandom.current().nextInt(PROBES)]);
+    }
+
+    @Benchmark
+    @Group("concurrent")
+    @GroupThreads(1)
+    public boolean concurrentPutThenRemove() {
+        MortonIndex i = absent[ThreadLocalRandom.current().nextInt(PROBES)];
+        concurrentSkiplist.put(i, points[0]);
+        return concurrentSkiplist.remove(i);
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(7)
+    public Point lockedGet() {
+        MortonIndex i = present[ThreadLocalRandom.current().nextInt(PROBES)];
+        synchronized (lockedSkiplist) {
+            return lockedSkiplist.get(i);
+        }
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(1)
+    public boolean lockedPutThenRemove() {
+        MortonIndex i = absent[ThreadLocalRandom.current().nextInt(PROBES)];
+        synchronized (lockedSkiplist) {
+            lockedSkiplist.put(i, points[0]);
+            return lockedSkiplist.remove(i);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package clsqt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//The budgeted decomposition and the nextInBox walk against the old fixed-ratio recursion, on the shapes that used to hurt it
+//"byRatio" is the old path end to end: decomposeByRatio, walk every interval, filter by coordinates
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx12g"})
+@State(Scope.Benchmark)
+public class DecomposeBenchmark {
+    static final int POW_TWO = 16;
+    static final int DIM = 1 << POW_TWO;
+    static final int PROBES = 1 << 10;
+
+    enum Shape {
+        SKINNY(16, 16384),
+        SQUARE(1024, 1024),
+        HUGE(60000, 60000);
+
+        final int width, height;
+
+        Shape(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    @Param({"1000000"})
+    int size;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    Workload workload;
+
+    @Param({"SKINNY", "SQUARE", "HUGE"})
+    Shape shape;
+
+    Quadtree<Point> quadtree;
+    int[][] rects;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Point[] points = workload.generate(size, DIM, 42);
+        quadtree = new Quadtree<>(POW_TWO);
+        for (Point p : points) {
+            quadtree.add(p);
+        }
+        Random rng = new Random(7);
+        rects = new int[PROBES][];
+        for (int i = 0; i < PROBES; i++) {
+            //Skinny ones alternate between wide and tall
+            int w = (i % 2 == 0) ? shape.width : shape.height, h = (i % 2 == 0) ? shape.height : shape.width;
+            int x = rng.nextInt(DIM - w + 1), y = rng.nextInt(DIM - h + 1);
+            rects[i] = new int[] {x, y, x + w - 1, y + h - 1};
+        }
+    }
+
+    @Benchmark
+    public ArrayList<Pair<QuadIndex, QuadIndex>> decomposeByRatio() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return LongMortonIndex.decomposeByRatio(r[0], r[1], r[2], r[3]);
+    }
+
+    @Benchmark
+    public ArrayList<Pair<QuadIndex, QuadIndex>> decompose() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return LongMortonIndex.decompose(r[0], r[1], r[2], r[3]);
+    }
+
+    @Benchmark
+    public ArrayList<Point> rectSearchByRatio() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        ArrayList<Point> resultList = new ArrayList<>();
+        quadtree.skiplist.intervalsVisit(LongMortonIndex.decomposeByRatio(r[0], r[1], r[2], r[3]),
+                c -> !(c.getX() >= r[0] && c.getX() <= r[2] && c.getY() >= r[1] && c.getY() <= r[3]) || resultList.add(c));
+        return resultList;
+    }
+
+    @Benchmark
+    public ArrayList<Point> rectSearch() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return quadtree.rectSearch(r[0], r[1], r[2], r[3]);
+    }
+}
@@ -0,0 +1,100 @@
+package clsqt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MortonBenchmark {
+    static final int DIM = 65536;
+    static final int PROBES = 1 << 12;
+
+    //Side length of the decomposed rectangle
+    @Param({"16", "1024", "16384"})
+    int window;
+
+    int[] xs, ys, encoded;
+    long[] longEncoded, hilbertEncoded;
+    int[][] rects;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random rng = new Random(42);
+        xs = new int[PROBES];
+        ys = new int[PROBES];
+        encoded = new int[PROBES];
+        longEncoded = new long[PROBES];
+        hilbertEncoded = new long[PROBES];
+        rects = new int[PROBES][];
+        for (int i = 0; i < PROBES; i++) {
+            xs[i] = rng.nextInt(DIM);
+            ys[i] = rng.nextInt(DIM);
+            encoded[i] = MortonIndex.encode(xs[i], ys[i]);
+            longEncoded[i] = LongMortonIndex.encode(xs[i], ys[i]);
+            hilbertEncoded[i] = HilbertIndex.encode(xs[i], ys[i]);
+            int x = rng.nextInt(DIM - window), y = rng.nextInt(DIM - window);
+            rects[i] = new int[] {x, y, x + window - 1, y + window - 1};
+        }
+    }
+
+    @Benchmark
+    public int encode() {
+        int i = cursor++ & (PROBES - 1);
+        return MortonIndex.encode(xs[i], ys[i]);
+    }
+
+    @Benchmark
+    public Pair<Integer, Integer> decode() {
+        return MortonIndex.decode(encoded[cursor++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public ArrayList<Pair<MortonIndex, MortonIndex>> decompose() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return MortonIndex.decompose(r[0], r[1], r[2], r[3]);
+    }
+
+    //64-bit keys, as used by the Quadtree
+    @Benchmark
+    public long longEncode() {
+        int i = cursor++ & (PROBES - 1);
+        return LongMortonIndex.encode(xs[i], ys[i]);
+    }
+
+    @Benchmark
+    public Pair<Integer, Integer> longDecode() {
+        return LongMortonIndex.decode(longEncoded[cursor++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public ArrayList<Pair<QuadIndex, QuadIndex>> longDecompose() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return LongMortonIndex.decompose(r[0], r[1], r[2], r[3]);
+    }
+
+    //The same on the Hilbert curve: costlier per key, but a rectangle comes out as fewer intervals
+    @Benchmark
+    public long hilbertEncode() {
+        int i = cursor++ & (PROBES - 1);
+        return HilbertIndex.encode(xs[i], ys[i]);
+    }
+
+    @Benchmark
+    public Pair<Integer, Integer> hilbertDecode() {
+        return HilbertIndex.decode(hilbertEncoded[cursor++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public ArrayList<Pair<QuadIndex, QuadIndex>> hilbertDecompose() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return new HilbertIndex(0L).rectIntervals(r[0], r[1], r[2], r[3]);
+    }
+}
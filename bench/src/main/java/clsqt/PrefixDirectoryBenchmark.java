@@ -0,0 +1,77 @@
+package clsqt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Searches that start from the skiplist's prefix directory (see Quadtree.buildDirectory) against plain descents from the top - directoryLevels 0 is the plain one
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx12g"})
+@State(Scope.Benchmark)
+public class PrefixDirectoryBenchmark {
+    static final int POW_TWO = 16;
+    static final int DIM = 1 << POW_TWO;
+    static final int PROBES = 1 << 14;
+    static final int WINDOW = 256;
+
+    @Param({"100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"UNIFORM", "CLUSTERED"})
+    Workload workload;
+
+    //4^6 and 4^8 entries
+    @Param({"0", "6", "8"})
+    int directoryLevels;
+
+    Quadtree<Point> quadtree;
+    QuadIndex[] present;
+    Point[] absent;
+    List<Pair<QuadIndex, QuadIndex>>[] windows;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Point[] points = workload.generate(size, DIM, 42);
+        quadtree = new Quadtree<>(POW_TWO);
+        quadtree.bulkLoad(List.of(points));
+        quadtree.buildDirectory(directoryLevels);
+        Random rng = new Random(7);
+        present = new QuadIndex[PROBES];
+        absent = new Point[PROBES];
+        windows = new List[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            Point p = points[rng.nextInt(size)];
+            present[i] = quadtree.cellIndex(p.getX(), p.getY());
+            //Drawn from the same distribution, so the adds land in the same regions as the points
+            absent[i] = workload.step(points[rng.nextInt(size)], DIM, rng);
+            windows[i] = quadtree.origin.rectIntervals(Workload.clamp(p.getX() - WINDOW / 2, DIM), Workload.clamp(p.getY() - WINDOW / 2, DIM),
+                    Workload.clamp(p.getX() + WINDOW / 2, DIM), Workload.clamp(p.getY() + WINDOW / 2, DIM));
+        }
+    }
+
+    @Benchmark
+    public Point get() {
+        return quadtree.skiplist.get(present[cursor++ & (PROBES - 1)]);
+    }
+
+    //Paired so the tree stays at the same size for the whole run
+    @Benchmark
+    public boolean addThenRemove() {
+        Point p = absent[cursor++ & (PROBES - 1)];
+        quadtree.add(p);
+        return quadtree.remove(p);
+    }
+
+    //Only the first interval of each window is a search from the top; the rest are finger searches that the directory only helps once they climb past it
+    @Benchmark
+    public ArrayList<Point> intervalsGet() {
+        return quadtree.skiplist.intervalsGet(windows[cursor++ & (PROBES - 1)]);
+    }
+}
@@ -0,0 +1,152 @@
+package clsqt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx12g"})
+@State(Scope.Benchmark)
+public class QuadtreeBenchmark {
+    static final int POW_TWO = 16;
+    static final int DIM = 1 << POW_TWO;
+    static final int PROBES = 1 << 12;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "MOVING"})
+    Workload workload;
+
+    //Values a quad holds before it splits
+    @Param({"1", "8"})
+    int bucketSize;
+
+    Quadtree<Point> quadtree;
+    Point[] points, absent;
+    List<Point> absentList;
+    Node<QuadIndex, Point>[] nodes;
+    Random rng = new Random(11);
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        points = workload.generate(size, DIM, 42);
+        quadtree = new Quadtree<>(POW_TWO, Quadtree.Curve.MORTON, bucketSize);
+        HashSet<Long> occupied = new HashSet<>();
+        for (Point p : points) {
+            quadtree.add(p);
+            occupied.add(LongMortonIndex.encode(p));
+        }
+        Random setupRng = new Random(7);
+        absent = new Point[PROBES];
+        nodes = new Node[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            Point miss;
+            do {
+                miss = workload.step(points[setupRng.nextInt(size)], DIM, setupRng);
+            } while (occupied.contains(LongMortonIndex.encode(miss)));
+            absent[i] = miss;
+            nodes[i] = quadtree.skiplist.findPrecursors(new LongMortonIndex(points[setupRng.nextInt(size)], 0), 0)[0].getNext(0);
+        }
+        absentList = Arrays.asList(absent);
+    }
+
+    //Paired so the tree stays at the same size for the whole run
+    @Benchmark
+    public boolean addThenRemove() {
+        Point p = absent[cursor++ & (PROBES - 1)];
+        quadtree.add(p);
+        return quadtree.remove(p);
+    }
+
+    //One ingestion tick of PROBES points going in and back out, one call at a time...
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public int tickSingle() {
+        int removed = 0;
+        for (Point p : absent) {
+            quadtree.add(p);
+        }
+        for (Point p : absent) {
+            removed += quadtree.remove(p) ? 1 : 0;
+        }
+        return removed;
+    }
+
+    //...and as one batch each way
+    @Benchmark
+    @OperationsPerInvocation(PROBES)
+    public int tickBatch() {
+        quadtree.addAll(absentList);
+        return quadtree.removeAll(absentList);
+    }
+
+    @Benchmark
+    public Optional<Point> nearestNeighbor() {
+        return quadtree.nearestNeighbor(nodes[cursor++ & (PROBES - 1)]);
+    }
+
+    //Queried from positions near the data that aren't points themselves, like a routing request would be
+    @Benchmark
+    public ArrayList<Point> kNearest() {
+        Point p = absent[cursor++ & (PROBES - 1)];
+        return quadtree.kNearest(p.getX(), p.getY(), 8);
+    }
+
+    //One point moving one step of the workload as a remove + add, the way it had to be done before move
+    @Benchmark
+    public boolean removeThenAdd() {
+        int i = rng.nextInt(size);
+        Point moved = workload.step(points[i], DIM, rng);
+        quadtree.remove(points[i]);
+        points[i] = moved;
+        return quadtree.add(moved);
+    }
+
+    @Benchmark
+    public boolean move() {
+        int i = rng.nextInt(size);
+        Point step = workload.step(points[i], DIM, rng);
+        if (quadtree.move(points[i], step.getX(), step.getY())) {
+            points[i].moveTo(step.getX(), step.getY());
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public void fill(Blackhole bh) throws Exception {
+        Quadtree<Point> q = new Quadtree<>(POW_TWO, Quadtree.Curve.MORTON, bucketSize);
+        for (Point p : points) {
+            q.add(p);
+        }
+        bh.consume(q);
+    }
+
+    //Same points as fill, through the sort-then-link path
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public void bulkLoad(Blackhole bh) throws Exception {
+        Quadtree<Point> q = new Quadtree<>(POW_TWO, Quadtree.Curve.MORTON, bucketSize);
+        q.bulkLoad(Arrays.asList(points));
+        bh.consume(q);
+    }
+}
@@ -0,0 +1,98 @@
+package clsqt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Kept apart from QuadtreeBenchmark so the window sizes don't multiply the update benchmarks
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx12g"})
+@State(Scope.Benchmark)
+public class RectSearchBenchmark {
+    static final int POW_TWO = 16;
+    static final int DIM = 1 << POW_TWO;
+    static final int PROBES = 1 << 12;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "MOVING"})
+    Workload workload;
+
+    //Side length of the query window
+    @Param({"64", "1024", "8192"})
+    int window;
+
+    @Param({"MORTON", "HILBERT"})
+    Quadtree.Curve curve;
+
+    @Param({"1", "8"})
+    int bucketSize;
+
+    Quadtree<Point> quadtree, countingQuadtree;
+    int[][] rects;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Point[] points = workload.generate(size, DIM, 42);
+        quadtree = new Quadtree<>(POW_TWO, curve, bucketSize);
+        countingQuadtree = new Quadtree<>(POW_TWO, curve, bucketSize, p -> 1.0);
+        for (Point p : points) {
+            quadtree.add(p);
+            countingQuadtree.add(p);
+        }
+        Random rng = new Random(7);
+        rects = new int[PROBES][];
+        for (int i = 0; i < PROBES; i++) {
+            //Centered on data so clustered queries actually hit something
+            Point center = points[rng.nextInt(size)];
+            rects[i] = new int[] {Workload.clamp(center.getX() - window / 2, DIM), Workload.clamp(center.getY() - window / 2, DIM),
+                    Workload.clamp(center.getX() + window / 2, DIM), Workload.clamp(center.getY() + window / 2, DIM)};
+        }
+    }
+
+    @Benchmark
+    public ArrayList<Point> rectSearch() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return quadtree.rectSearch(r[0], r[1], r[2], r[3]);
+    }
+
+    //The circle inscribed in the same window
+    @Benchmark
+    public ArrayList<Point> radiusSearch() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return quadtree.radiusSearch((r[0] + r[2]) / 2, (r[1] + r[3]) / 2, window / 2);
+    }
+
+    @Benchmark
+    public ArrayList<Point> parallelRectSearch() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return quadtree.parallelRectSearch(r[0], r[1], r[2], r[3]);
+    }
+
+    //Early termination: against rectSearch(...).isEmpty(), which has to collect the whole window first
+    @Benchmark
+    public boolean anyInRect() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return quadtree.anyInRect(r[0], r[1], r[2], r[3]);
+    }
+
+    //Counted from the skiplist's towers, against walking every point (rectStreamCount, or count on a tree without aggregates)
+    @Benchmark
+    public long count() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return countingQuadtree.count(r[0], r[1], r[2], r[3]);
+    }
+
+    @Benchmark
+    public long rectStreamCount() {
+        int[] r = rects[cursor++ & (PROBES - 1)];
+        return quadtree.rectStream(r[0], r[1], r[2], r[3]).count();
+    }
+}
@@ -0,0 +1,124 @@
+package clsqt;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Movers and rectangle readers sharing one map: ShardedQuadtree against a single Quadtree behind one lock
+//Each mover owns its own slice of the points, so two threads never move the same point
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx12g"})
+@State(Scope.Group)
+public class ShardedQuadtreeBenchmark {
+    static final int POW_TWO = 16;
+    static final int DIM = 1 << POW_TWO;
+    static final int MOVERS = 4;
+    static final int WINDOW = 1024;
+
+    @Param({"100000", "1000000"})
+    int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "MOVING"})
+    Workload workload;
+
+    @Param({"4", "6"})
+    int shardBits;
+
+    ShardedQuadtree<Point> shardedQuadtree;
+    Quadtree<Point> lockedQuadtree;
+    Point[] points, lockedPoints;
+    AtomicInteger slices = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        //Separate copies, since moving a point changes it
+        points = workload.generate(size, DIM, 42);
+        lockedPoints = workload.generate(size, DIM, 42);
+        shardedQuadtree = new ShardedQuadtree<>(POW_TWO, shardBits);
+        lockedQuadtree = new Quadtree<>(POW_TWO);
+        ArrayList<Point> all = new ArrayList<>(size);
+        for (Point p : points) {
+            all.add(p);
+        }
+        shardedQuadtree.addAll(all);
+        all.clear();
+        for (Point p : lockedPoints) {
+            all.add(p);
+        }
+        lockedQuadtree.addAll(all);
+    }
+
+    @State(Scope.Thread)
+    public static class Mover {
+        int slice;
+        Random rng;
+
+        @Setup(Level.Trial)
+        public void setup(ShardedQuadtreeBenchmark benchmark) {
+            slice = benchmark.slices.getAndIncrement();
+            rng = new Random(slice);
+        }
+
+        int pick(int size) {
+            int i = rng.nextInt(size / MOVERS) * MOVERS + slice;
+            return (i < size) ? i : slice;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reader {
+        Random rng = new Random();
+    }
+
+    @Benchmark
+    @Group("sharded")
+    @GroupThreads(MOVERS)
+    public boolean shardedMove(Mover mover) {
+        Point p = points[mover.pick(size)];
+        Point step = workload.step(p, DIM, mover.rng);
+        if (shardedQuadtree.move(p, step.getX(), step.getY())) {
+            p.moveTo(step.getX(), step.getY());
+            return true;
+        }
+        return false;
+    }
+
+    @Benchmark
+    @Group("sharded")
+    @GroupThreads(4)
+    public ArrayList<Point> shardedRectSearch(Reader reader) {
+        int x = reader.rng.nextInt(DIM - WINDOW), y = reader.rng.nextInt(DIM - WINDOW);
+        return shardedQuadtree.rectSearch(x, y, x + WINDOW, y + WINDOW);
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(MOVERS)
+    public boolean lockedMove(Mover mover) {
+        Point p = lockedPoints[mover.pick(size)];
+        Point step = workload.step(p, DIM, mover.rng);
+        synchronized (lockedQuadtree) {
+            if (lockedQuadtree.move(p, step.getX(), step.getY())) {
+                p.moveTo(step.getX(), step.getY());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Benchmark
+    @Group("locked")
+    @GroupThreads(4)
+    public ArrayList<Point> lockedRectSearch(Reader reader) {
+        int x = reader.rng.nextInt(DIM - WINDOW), y = reader.rng.nextInt(DIM - WINDOW);
+        synchronized (lockedQuadtree) {
+            return lockedQuadtree.rectSearch(x, y, x + WINDOW, y + WINDOW);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package clsqt;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx12g"})
+@State(Scope.Benchmark)
+public class SkiplistBenchmark {
+    static final int DIM = 65536;
+    static final int PROBES = 1 << 16;
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    int size;
+
+    @Param({"UNIFORM", "CLUSTERED", "MOVING"})
+    Workload workload;
+
+    Skiplist<MortonIndex, Point> skiplist;
+    MortonIndex[] present, absent;
+    long[] presentKeys, absentKeys;
+    Point[] points;
+    int cursor;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        points = workload.generate(size, DIM, 42);
+        skiplist = newSkiplist();
+        for (Point p : points) {
+            skiplist.put(new MortonIndex(p, 0), p);
+        }
+        present = new MortonIndex[PROBES];
+        absent = new MortonIndex[PROBES];
+        Random rng = new Random(7);
+        for (int i = 0; i < PROBES; i++) {
+            present[i] = new MortonIndex(points[rng.nextInt(size)], 0);
+            //Drawn from the same distribution, so misses land in the same regions as hits
+            MortonIndex miss;
+            do {
+                miss = new MortonIndex(workload.step(points[rng.nextInt(size)], DIM, rng), 0);
+            } while (skiplist.get(miss) != null);
+            absent[i] = miss;
+        }
+        presentKeys = new long[PROBES];
+        absentKeys = new long[PROBES];
+        for (int i = 0; i < PROBES; i++) {
+            presentKeys[i] = present[i].toLong();
+            absentKeys[i] = absent[i].toLong();
+        }
+    }
+
+    static Skiplist<MortonIndex, Point> newSkiplist() {
+        return new Skiplist<>(new MortonIndex(0, 0, 0), new MortonIndex(DIM - 1, DIM - 1, 0));
+    }
+
+    @Benchmark
+    public Point get() {
+        return skiplist.get(present[cursor++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public Point getMiss() {
+        return skiplist.get(absent[cursor++ & (PROBES - 1)]);
+    }
+
+    //Paired so the list stays at the same size for the whole run
+    @Benchmark
+    public boolean putThenRemove() {
+        MortonIndex i = absent[cursor++ & (PROBES - 1)];
+        skiplist.put(i, points[0]);
+        return skiplist.remove(i);
+    }
+
+    @Benchmark
+    public boolean removeThenPut() {
+        MortonIndex i = present[cursor++ & (PROBES - 1)];
+        skiplist.remove(i);
+        return skiplist.put(i, points[0]);
+    }
+
+    //The same lookups by bare key, which allocate nothing
+    @Benchmark
+    public Point getByKey() {
+        return skiplist.get(presentKeys[cursor++ & (PROBES - 1)]);
+    }
+
+    @Benchmark
+    public Point getMissByKey() {
+        return skiplist.get(absentKeys[cursor++ & (PROBES - 1)]);
+    }
+
+    //Cold build of the whole list one put at a time - the baseline for any bulk loading
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public void fill(Blackhole bh) {
+        Skiplist<MortonIndex, Point> s = newSkiplist();
+        for (Point p : points) {
+            s.put(new MortonIndex(p, 0), p);
+        }
+        bh.consume(s);
+    }
+}
@@ -0,0 +1,56 @@
+package clsqt;
+
+import java.util.Random;
+
+//Point sets for the benchmarks. Everything is seeded so runs are comparable between commits
+enum Workload {
+    //Evenly spread over the whole space
+    UNIFORM,
+    //Dense gaussian blobs with mostly empty space between them - what most of our real datasets look like
+    CLUSTERED,
+    //Starts out uniform, but each step only moves a point a few units (vehicles, players, etc)
+    MOVING;
+
+    static final int CLUSTERS = 64;
+    static final int MOVE_STEP = 4;
+
+    Point[] generate(int n, int dim, long seed) {
+        Random rng = new Random(seed);
+        Point[] points = new Point[n];
+        if (this == CLUSTERED) {
+            int[] centerX = new int[CLUSTERS], centerY = new int[CLUSTERS];
+            for (int c = 0; c < CLUSTERS; c++) {
+                centerX[c] = rng.nextInt(dim);
+                centerY[c] = rng.nextInt(dim);
+            }
+            double spread = dim / 128.0;
+            for (int i = 0; i < n; i++) {
+                int c = rng.nextInt(CLUSTERS);
+                points[i] = new Point(clamp(centerX[c] + (int) (rng.nextGaussian() * spread), dim), clamp(centerY[c] + (int) (rng.nextGaussian() * spread), dim));
+            }
+        }
+        else {
+            for (int i = 0; i < n; i++) {
+                points[i] = new Point(rng.nextInt(dim), rng.nextInt(dim));
+            }
+        }
+        return points;
+    }
+
+    //Where p ends up after one tick of this workload
+    Point step(Point p, int dim, Random rng) {
+        switch (this) {
+            case MOVING:
+                return new Point(clamp(p.getX() + rng.nextInt(2 * MOVE_STEP + 1) - MOVE_STEP, dim), clamp(p.getY() + rng.nextInt(2 * MOVE_STEP + 1) - MOVE_STEP, dim));
+            case CLUSTERED:
+                //Jump somewhere else in roughly the same blob
+                return new Point(clamp(p.getX() + (int) (rng.nextGaussian() * dim / 128.0), dim), clamp(p.getY() + (int) (rng.nextGaussian() * dim / 128.0), dim));
+            default:
+                return new Point(rng.nextInt(dim), rng.nextInt(dim));
+        }
+    }
+
+    static int clamp(int v, int dim) {
+        return v < 0 ? 0 : (v >= dim ? dim - 1 : v);
+    }
+}
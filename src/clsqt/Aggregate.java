@@ -0,0 +1,67 @@
+package clsqt;
+
+//Count, sum, min and max of some measure over a set of values - what Skiplist keeps on its towers once trackAggregates is on
+//All four combine the same way whichever order the values come in, so a query can add up whole blocks of the list as it finds them
+public class Aggregate {
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY; //So an empty aggregate takes any value's place
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    //Infinity, positive or negative, while empty
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return (count == 0) ? Double.NaN : sum / count;
+    }
+
+    void add(double measure) {
+        count++;
+        sum += measure;
+        min = Math.min(min, measure);
+        max = Math.max(max, measure);
+    }
+
+    void add(Aggregate a) {
+        count += a.count;
+        sum += a.sum;
+        min = Math.min(min, a.min);
+        max = Math.max(max, a.max);
+    }
+
+    //Takes a value back out, if we can tell what's left without it: not when it was the min or the max (unless all the rest are equal to it), since we don't know the runner-up
+    //Returns whether it did; if not, nothing changed and the caller has to add up the rest again. Fractional sums can pick up rounding this way, like any running total
+    boolean remove(double measure) {
+        if (count <= 1 || (min != max && (measure <= min || measure >= max))) {
+            return false;
+        }
+        count--;
+        sum -= measure;
+        return true;
+    }
+
+    void clear() {
+        count = 0;
+        sum = 0;
+        min = Double.POSITIVE_INFINITY;
+        max = Double.NEGATIVE_INFINITY;
+    }
+
+    @Override
+    public String toString() {
+        return "{count=" + count + ", sum=" + sum + ", min=" + min + ", max=" + max + "}";
+    }
+}
@@ -0,0 +1,307 @@
+package clsqt;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicMarkableReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+//Lock-free version of Skiplist, for many readers and writers at once - same alternating link directions, same range-sized nodes
+//Every link is an AtomicMarkableReference; a node's mark on level h means it is being deleted there, the same trick as ConcurrentSkipListMap's marker nodes
+//Every level is its own lock-free sorted list (ascending on even levels, descending on odd ones), so all the CAS logic is written once with the same alternator Skiplist uses
+//Level 0 is the actual list: put, remove and get are linearizable there. Higher levels are just shortcuts and may briefly lag behind it
+//Like Skiplist, nothing here stops two overlapping ranges from going in - keeping ranges disjoint is still up to the caller
+public class ConcurrentSkiplist<I extends Index<I>, V> {
+    private static final AtomicReferenceFieldUpdater<CNode, Object> VALUE = AtomicReferenceFieldUpdater.newUpdater(CNode.class, Object.class, "value");
+    private final int listCeiling = 24;
+    private final AtomicInteger currentMaxHeight = new AtomicInteger(0); //Only ever grows; empty levels above the real top just cost a step or two
+    private final LongAdder size = new LongAdder(); //A single counter would have every writer fighting over the same cache line
+    private final CNode<I, V> headNode, tailNode;
+
+    public ConcurrentSkiplist(I head, I tail) {
+        headNode = new CNode<>(head, null, listCeiling - 1);
+        tailNode = new CNode<>(tail, null, listCeiling - 1);
+        for (int h = 0; h < listCeiling; h++) {
+            if (h % 2 == 0) {
+                headNode.nextNodes[h].set(tailNode, false);
+            } else {
+                tailNode.nextNodes[h].set(headNode, false);
+            }
+        }
+    }
+
+    //Linearizable: sees every put and remove that finished before it started
+    public V get(I i) {
+        CNode<I, V> targetNode = firstNodeFrom(i);
+        return containsIndex(targetNode, i) ? targetNode.getValue() : null;
+    }
+
+    //Same collision rule as Skiplist.put: a key landing in a node's range replaces its value - the precursor's, when a range starts below i, or the next node's
+    public boolean put(I i, V v) {
+        if (v == null) {
+            //null is how we tell a removed node apart
+            throw new NullPointerException();
+        }
+        int h = pickNodeHeight();
+        CNode<I, V>[] precursorNodes = new CNode[listCeiling];
+        CNode<I, V>[] successorNodes = new CNode[listCeiling];
+        CNode<I, V> newNode, targetNode;
+        while (true) {
+            CNode<I, V> next = findPrecursors(i, h, precursorNodes, successorNodes);
+            targetNode = containsIndex(precursorNodes[0], i) ? precursorNodes[0] : next;
+            if (containsIndex(targetNode, i)) {
+                Object oldValue = targetNode.value;
+                if (oldValue != null && VALUE.compareAndSet(targetNode, oldValue, v)) {
+                    return true;
+                }
+                //Removed under us (or replaced, in which case we try again against the new value); make sure it's unlinked before we look again
+                if (oldValue == null) {
+                    markDeleted(targetNode);
+                }
+                continue;
+            }
+            newNode = new CNode<>(i, v, h);
+            newNode.nextNodes[0].set(next, false);
+            //Linearization point: once we're on level 0 we're in the list
+            if (precursorNodes[0].nextNodes[0].compareAndSet(next, newNode, false, false)) {
+                break;
+            }
+        }
+        size.increment();
+        raiseMaxHeight(h);
+        linkUpperLevels(newNode, precursorNodes, successorNodes);
+        return true;
+    }
+
+    public boolean remove(I i) {
+        CNode<I, V> targetNode;
+        Object oldValue;
+        while (true) {
+            targetNode = firstNodeFrom(i);
+            if (!containsIndex(targetNode, i)) {
+                return false;
+            }
+            oldValue = targetNode.value;
+            if (oldValue == null) {
+                //Someone else removed it first
+                return false;
+            }
+            //Linearization point: a node without a value is gone, even while it's still linked
+            if (VALUE.compareAndSet(targetNode, oldValue, null)) {
+                break;
+            }
+        }
+        size.decrement();
+        markDeleted(targetNode);
+        //One more search unlinks it from every level on the way down
+        findPrecursors(targetNode.index, targetNode.getMaxHeight(), null, null);
+        return true;
+    }
+
+    //Weakly consistent, like iterating a ConcurrentSkipListMap: never fails or repeats a node, but may or may not see changes made while it runs
+    //Given a SORTED list of intervals, returns values of all nodes within them - same walk as Skiplist.intervalsGet
+    public ArrayList<V> intervalsGet(ArrayList<Pair<I, I>> intervals) {
+        ArrayList<V> returnList = new ArrayList<V>();
+        CNode<I, V> currentNode = headNode;
+        V value;
+        for (Pair<I, I> interval : intervals) {
+            if (endsBefore(currentNode, interval.getL())) {
+                currentNode = firstNodeFrom(interval.getL());
+            }
+            while (true) {
+                value = currentNode.getValue();
+                if (value != null && currentNode.index.compareTo(interval.getL()) >= 0 && currentNode.index.compareTo(interval.getR()) <= 0) {
+                    returnList.add(value);
+                }
+                if (reachesPast(currentNode, interval.getR())) {
+                    break;
+                }
+                currentNode = currentNode.nextNodes[0].getReference();
+            }
+        }
+        return returnList;
+    }
+
+    //Counted as puts and removes finish, so only exact when nothing is running
+    public int size() {
+        return size.intValue();
+    }
+
+    //The node whose range holds i if there is one - which can be the precursor, for a range starting below i - or else the first one after i
+    private CNode<I, V> firstNodeFrom(I i) {
+        CNode<I, V>[] precursorNodes = new CNode[1];
+        CNode<I, V> next = findPrecursors(i, 0, precursorNodes, null);
+        return containsIndex(precursorNodes[0], i) ? precursorNodes[0] : next;
+    }
+
+    private boolean endsBefore(CNode<I, V> n, I i) {
+        return !containsIndex(n, i) && compare(n, i) < 0;
+    }
+
+    private boolean reachesPast(CNode<I, V> n, I i) {
+        return containsIndex(n, i) || compare(n, i) > 0;
+    }
+
+    //The same snaking descent as Skiplist.descend, from max(currentMaxHeight, h) down to level 0, unlinking any marked node it steps over
+    //Records the precursor (last node below i on even levels, first above it on odd ones) and the node after it on every level either array has room for
+    //Returns the node after the precursor on level 0. Starts over from the top if the node it's standing on gets deleted under it
+    private CNode<I, V> findPrecursors(I i, int h, CNode<I, V>[] precursorNodes, CNode<I, V>[] successorNodes) {
+        retry:
+        while (true) {
+            int height = Math.max(currentMaxHeight.get(), h);
+            int alternator;
+            CNode<I, V> current = (height % 2 == 0) ? headNode : tailNode;
+            CNode<I, V> next, afterNext;
+            while (true) {
+                alternator = (1 - 2 * (height % 2)); //1 on even heights, -1 on odd
+                next = current.nextNodes[height].getReference();
+                while (true) {
+                    if (current.nextNodes[height].isMarked()) {
+                        continue retry;
+                    }
+                    //Help out whoever is deleting next: it's marked, so its own link is frozen and safe to copy
+                    if (next.nextNodes[height].isMarked()) {
+                        afterNext = next.nextNodes[height].getReference();
+                        if (!current.nextNodes[height].compareAndSet(next, afterNext, false, false)) {
+                            continue retry;
+                        }
+                        next = afterNext;
+                        continue;
+                    }
+                    if (compare(next, i) * alternator < 0) {
+                        current = next;
+                        next = current.nextNodes[height].getReference();
+                    }
+                    else {
+                        break;
+                    }
+                }
+                if (precursorNodes != null && height < precursorNodes.length) {
+                    precursorNodes[height] = current;
+                }
+                if (successorNodes != null && height < successorNodes.length) {
+                    successorNodes[height] = next;
+                }
+                if (height == 0) {
+                    return next;
+                }
+                //The level below runs the other way, so it starts from next - stepping past it if it sits exactly on i, or the level below would start on the wrong side
+                current = (compare(next, i) == 0) ? next.nextNodes[height].getReference() : next;
+                height--;
+            }
+        }
+    }
+
+    //Links a node that's already on level 0 into its upper levels, bottom-up, so a node on any level is always on the ones below it too
+    //Gives up as soon as the node is removed, since linking it further would only give the next search more to unlink
+    private void linkUpperLevels(CNode<I, V> n, CNode<I, V>[] precursorNodes, CNode<I, V>[] successorNodes) {
+        CNode<I, V> next;
+        for (int h = 1; h <= n.getMaxHeight(); h++) {
+            while (true) {
+                next = successorNodes[h];
+                if (next == n) {
+                    break;
+                }
+                //Fails only if a remove already marked this level
+                if (!n.nextNodes[h].compareAndSet(n.nextNodes[h].getReference(), next, false, false)) {
+                    return;
+                }
+                if (precursorNodes[h].nextNodes[h].compareAndSet(next, n, false, false)) {
+                    break;
+                }
+                findPrecursors(n.index, n.getMaxHeight(), precursorNodes, successorNodes);
+                if (n.value == null) {
+                    return;
+                }
+            }
+        }
+        //A remove may have marked us between our check and our CAS; if so, clean up after ourselves
+        if (n.value == null) {
+            findPrecursors(n.index, n.getMaxHeight(), null, null);
+        }
+    }
+
+    //Top-down, so a half-deleted node is never reachable on a level without being reachable on the ones below
+    private void markDeleted(CNode<I, V> n) {
+        CNode<I, V> next;
+        for (int h = n.getMaxHeight(); h >= 0; h--) {
+            do {
+                next = n.nextNodes[h].getReference();
+            } while (!n.nextNodes[h].isMarked() && !n.nextNodes[h].attemptMark(next, true));
+        }
+    }
+
+    //No tracker to keep in sync across threads, so heights are random at the same 1:3 ratio Skiplist aims for
+    private int pickNodeHeight() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int h = 0;
+        while (h < listCeiling - 1 && random.nextInt(3) == 0) {
+            h++;
+        }
+        return h;
+    }
+
+    private void raiseMaxHeight(int h) {
+        int current;
+        do {
+            current = currentMaxHeight.get();
+        } while (h > current && !currentMaxHeight.compareAndSet(current, h));
+    }
+
+    //Head and tail sort before and after everything and hold nothing
+    private int compare(CNode<I, V> n, I i) {
+        if (n == headNode) {
+            return -1;
+        }
+        if (n == tailNode) {
+            return 1;
+        }
+        return n.index.compareTo(i);
+    }
+
+    private boolean containsIndex(CNode<I, V> n, I i) {
+        return n != headNode && n != tailNode && n.index.contains(i);
+    }
+
+    public String toString() {
+        CNode<I, V> current = headNode.nextNodes[0].getReference();
+        StringBuilder stringBuilder = new StringBuilder("{");
+        while (current != tailNode) {
+            if (current.value != null) {
+                stringBuilder.append(current.toString() + ", ");
+            }
+            current = current.nextNodes[0].getReference();
+        }
+        return stringBuilder.append("}").toString();
+    }
+
+    //Not a Node: Node's setNext/getNext can't express a compare-and-set
+    static final class CNode<I extends Index<I>, V> {
+        final I index;
+        volatile Object value; //null once removed; Object rather than V only so the field updater can reach it
+        final AtomicMarkableReference<CNode<I, V>>[] nextNodes;
+
+        CNode(I i, V v, int h) {
+            index = i;
+            value = v;
+            nextNodes = new AtomicMarkableReference[h + 1];
+            for (int l = 0; l <= h; l++) {
+                nextNodes[l] = new AtomicMarkableReference<>(null, false);
+            }
+        }
+
+        V getValue() {
+            return (V) value;
+        }
+
+        int getMaxHeight() {
+            return nextNodes.length - 1;
+        }
+
+        @Override
+        public String toString() {
+            return index.toString() + "=" + value;
+        }
+    }
+}
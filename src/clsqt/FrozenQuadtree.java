@@ -0,0 +1,267 @@
+package clsqt;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+//A read-only copy of a Quadtree for data that's done changing: no nodes, towers or links, just every value's key in one sorted run, delta-encoded and bit-packed
+//Keys come in blocks of BLOCK_KEYS. Each block keeps its first key whole in firstKeys - the sparse index we binary search - and the gaps to the rest
+//in just as many bits as its largest gap needs, so a block of uniform points is about one cache line. Values sit in a plain array in the same order
+//A search is a binary search over firstKeys and a decode of one block; a scan decodes block after block, front to back
+//Immutable, so any number of threads can query it at once. Built from the values as they are, so they mustn't move afterwards
+public class FrozenQuadtree<V extends Cartesian> {
+    static final int BLOCK_KEYS = 32;
+    static final int LEAF_KEYS = 8; //How many keys a quad holds before kNearest splits it rather than checking them
+    private final QuadIndex origin;
+    private final int maxRes;
+    private final int maxIntervals;
+    private final double falsePositives;
+    private final int size;
+    private final Object[] values;
+    private final long[] firstKeys;
+    private final int[] offsets; //Where each block's gaps start in packed, in longs
+    private final byte[] widths; //How many bits each of a block's gaps takes
+    private final long[] packed;
+
+    FrozenQuadtree(Quadtree<V> qt) {
+        origin = qt.origin;
+        maxRes = qt.maxRes;
+        maxIntervals = qt.maxIntervals;
+        falsePositives = qt.falsePositives;
+        int count = 0;
+        for (Node<QuadIndex, V> n = qt.skiplist.firstNodeFrom(origin.newIndex(0L, 0)); n.hasNext(0); n = n.getNext(0)) {
+            count += n.size();
+        }
+        size = count;
+        values = new Object[size];
+        long[] keys = new long[size];
+        int i = 0;
+        for (Node<QuadIndex, V> n = qt.skiplist.firstNodeFrom(origin.newIndex(0L, 0)); n.hasNext(0); n = n.getNext(0)) {
+            for (int j = 0; j < n.size(); j++, i++) {
+                keys[i] = n.isBucket() ? n.getKey(j) : n.getKey();
+                values[i] = n.getValue(j);
+            }
+        }
+        int blocks = (size + BLOCK_KEYS - 1) / BLOCK_KEYS, words = 0, end;
+        long largestGap;
+        firstKeys = new long[blocks];
+        offsets = new int[blocks];
+        widths = new byte[blocks];
+        for (int b = 0; b < blocks; b++) {
+            end = Math.min(size, (b + 1) * BLOCK_KEYS);
+            largestGap = 0;
+            for (i = b * BLOCK_KEYS + 1; i < end; i++) {
+                largestGap |= keys[i] - keys[i - 1]; //Only the highest bit matters
+            }
+            firstKeys[b] = keys[b * BLOCK_KEYS];
+            widths[b] = (byte) (64 - Long.numberOfLeadingZeros(largestGap));
+            offsets[b] = words;
+            words += (int) (((long) (end - b * BLOCK_KEYS - 1) * widths[b] + 63) >>> 6);
+        }
+        packed = new long[words];
+        long bit;
+        for (int b = 0; b < blocks; b++) {
+            end = Math.min(size, (b + 1) * BLOCK_KEYS);
+            bit = (long) offsets[b] << 6;
+            for (i = b * BLOCK_KEYS + 1; i < end; i++, bit += widths[b]) {
+                pack(bit, keys[i] - keys[i - 1], widths[b]);
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void pack(long bit, long gap, int width) {
+        int word = (int) (bit >>> 6), shift = (int) (bit & 63);
+        if (width == 0) {
+            return;
+        }
+        packed[word] |= gap << shift;
+        if (shift + width > 64) {
+            packed[word + 1] |= gap >>> (64 - shift);
+        }
+    }
+
+    private long unpack(long bit, int width) {
+        int word = (int) (bit >>> 6), shift = (int) (bit & 63);
+        if (width == 0) {
+            return 0;
+        }
+        long gap = packed[word] >>> shift;
+        if (shift + width > 64) {
+            gap |= packed[word + 1] << (64 - shift);
+        }
+        return (width == 64) ? gap : gap & ((1L << width) - 1);
+    }
+
+    public ArrayList<V> rectSearch(int x1, int y1, int x2, int y2) {
+        return rectSearch(x1, y1, x2, y2, c -> true);
+    }
+
+    public ArrayList<V> rectSearch(int x1, int y1, int x2, int y2, Predicate<Cartesian> filter) {
+        ArrayList<V> resultList = new ArrayList<>();
+        visitRect(x1, y1, x2, y2, filter, c -> resultList.add(c));
+        return resultList;
+    }
+
+    //Quadtree.visitRect: every match to visitor, in key order, until it returns false. Returns whether it got through the whole rectangle
+    public boolean visitRect(int x1, int y1, int x2, int y2, Predicate<Cartesian> filter, Predicate<? super V> visitor) {
+        int xMin, xMax, yMin, yMax;
+        xMin = Math.min(x1, x2);
+        xMax = Math.max(x1, x2);
+        yMin = Math.min(y1, y2);
+        yMax = Math.max(y1, y2);
+        return visitBox(xMin, yMin, xMax, yMax, c -> !filter.test(c) || visitor.test(c));
+    }
+
+    public long count(int x1, int y1, int x2, int y2) {
+        long[] count = {0};
+        visitRect(x1, y1, x2, y2, c -> true, c -> ++count[0] > 0);
+        return count[0];
+    }
+
+    //Quadtree.visitBox over the packed keys: a key inside the rectangle is a match without looking at its value, and from a key outside we jump to the next one inside
+    private boolean visitBox(int xMin, int yMin, int xMax, int yMax, Predicate<? super V> visitor) {
+        Cursor cursor = new Cursor();
+        long key, next, end;
+        for (Pair<QuadIndex, QuadIndex> interval : origin.rectIntervals(xMin, yMin, xMax, yMax, maxIntervals, falsePositives)) {
+            //Intervals are sorted, so this never goes back
+            cursor.seek(interval.getL().minRange());
+            end = interval.getR().maxRange();
+            while (cursor.position() < size && Long.compareUnsigned(key = cursor.key(), end) <= 0) {
+                if (origin.keyInRect(key, xMin, yMin, xMax, yMax)) {
+                    if (!visitor.test((V) values[cursor.position()])) {
+                        return false;
+                    }
+                    cursor.next();
+                    continue;
+                }
+                next = origin.nextInRect(key, xMin, yMin, xMax, yMax);
+                if (Long.compareUnsigned(next, end) > 0) {
+                    break;
+                }
+                cursor.seek(next);
+            }
+        }
+        return true;
+    }
+
+    //Quadtree.kNearest, with a quad's points being the run of keys in its range: small runs are checked, big ones split
+    public ArrayList<V> kNearest(int x, int y, int k) {
+        PriorityQueue<Pair<Long, QuadIndex>> quads = new PriorityQueue<>(Comparator.comparing(Pair::getL));
+        PriorityQueue<Pair<Long, V>> nearest = new PriorityQueue<>(Comparator.comparing((Pair<Long, V> p) -> p.getL()).reversed()); //Bounded to k, furthest on top
+        Cursor cursor = new Cursor();
+        QuadIndex quad;
+        int from, to;
+        long distance;
+        V c;
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        quads.add(new Pair<>(0L, origin.newIndex(0L, maxRes)));
+        while (!quads.isEmpty()) {
+            if (nearest.size() == k && quads.peek().getL() > nearest.peek().getL()) {
+                break;
+            }
+            quad = quads.poll().getR();
+            from = cursor.seek(quad.minRange());
+            to = cursor.seek(quad.maxRange() + 1);
+            if (to - from <= LEAF_KEYS || quad.getRes() == 0) {
+                for (int i = from; i < to; i++) {
+                    c = (V) values[i];
+                    distance = (long) (c.getX() - x) * (c.getX() - x) + (long) (c.getY() - y) * (c.getY() - y);
+                    if (nearest.size() < k) {
+                        nearest.add(new Pair<>(distance, c));
+                    }
+                    else if (distance < nearest.peek().getL()) {
+                        nearest.poll();
+                        nearest.add(new Pair<>(distance, c));
+                    }
+                }
+                continue;
+            }
+            for (long quadrant = 0; quadrant < 4; quadrant++) {
+                QuadIndex subQuad = quad.child(quadrant);
+                quads.add(new Pair<>(subQuad.minDistance(x, y), subQuad));
+            }
+        }
+        ArrayList<Pair<Long, V>> sorted = new ArrayList<>(nearest);
+        sorted.sort(Comparator.comparing(Pair::getL));
+        ArrayList<V> returnList = new ArrayList<>(sorted.size());
+        for (Pair<Long, V> p : sorted) {
+            returnList.add(p.getR());
+        }
+        return returnList;
+    }
+
+    //A position in the keys, with its block decoded - one per query, which is what keeps the tree itself free of state
+    private class Cursor {
+        private final long[] keys = new long[BLOCK_KEYS];
+        private int block = -1, count, i;
+
+        int position() {
+            return (block < 0) ? 0 : block * BLOCK_KEYS + i;
+        }
+
+        long key() {
+            return keys[i];
+        }
+
+        void next() {
+            if (++i == count && block + 1 < firstKeys.length) {
+                decode(block + 1);
+            }
+        }
+
+        //Moves to the first key at or after target (unsigned) and returns its position - size if there's none
+        //Stays in the decoded block if target is in it; otherwise a binary search over the blocks' first keys, which only ever decodes the one it lands in
+        int seek(long target) {
+            if (size == 0) {
+                return 0;
+            }
+            if (block < 0 || (block > 0 && Long.compareUnsigned(target, keys[0]) <= 0) || Long.compareUnsigned(target, keys[count - 1]) > 0) {
+                int low = 0, high = firstKeys.length - 1, middle;
+                //The last block starting before target, or the first if none does - not at it, since a run of equal keys can start in the block before
+                while (low < high) {
+                    middle = (low + high + 1) >>> 1;
+                    if (Long.compareUnsigned(firstKeys[middle], target) < 0) {
+                        low = middle;
+                    }
+                    else {
+                        high = middle - 1;
+                    }
+                }
+                if (low != block) {
+                    decode(low);
+                }
+                i = 0;
+            }
+            else if (i == count || Long.compareUnsigned(target, keys[i]) <= 0) {
+                i = 0;
+            }
+            while (i < count && Long.compareUnsigned(keys[i], target) < 0) {
+                i++;
+            }
+            //Past this block's keys: the next block's first one is past target, or there's no next block
+            if (i == count && block + 1 < firstKeys.length) {
+                decode(block + 1);
+            }
+            return position();
+        }
+
+        private void decode(int b) {
+            int width = widths[b];
+            long bit = (long) offsets[b] << 6;
+            block = b;
+            count = Math.min(BLOCK_KEYS, size - b * BLOCK_KEYS);
+            i = 0;
+            keys[0] = firstKeys[b];
+            for (int j = 1; j < count; j++, bit += width) {
+                keys[j] = keys[j - 1] + unpack(bit, width);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package clsqt;
+
+//A quad key on the Hilbert curve instead of the Z-order one. Consecutive cells always share an edge, so there are no jumps across the map at quadrant seams,
+//and a rectangle straddling one comes out as fewer intervals. Every aligned 2^r square is still one aligned run of 4^r keys - only the order of the four
+//quadrants inside each quad changes from level to level - so resolution, containment and overlap are QuadIndex's, unchanged
+class HilbertIndex extends QuadIndex {
+    //Encoding runs 4 levels at a time: ENCODE[state << 8 | xNibble << 4 | yNibble] holds those levels' 8 key bits, shifted up 2, with the state after them below
+    //The state is how the quad we're in is turned relative to the one at the top: bit 0 = x and y swapped, bit 1 = both mirrored. DECODE goes from key bytes back
+    private static final short[] ENCODE = new short[4 << 8], DECODE = new short[4 << 8];
+
+    static {
+        for (int state = 0; state < 4; state++) {
+            for (int bits = 0; bits < 256; bits++) {
+                ENCODE[state << 8 | bits] = encodeLevels(state, bits >>> 4, bits & 15);
+                DECODE[state << 8 | bits] = decodeLevels(state, bits);
+            }
+        }
+    }
+
+    HilbertIndex(long i) {
+        this(i, 0);
+    }
+
+    HilbertIndex(int x, int y, int r) {
+        super(encode(x, y), r);
+    }
+
+    HilbertIndex(Cartesian c, int r) {
+        this(c.getX(), c.getY(), r);
+    }
+
+    HilbertIndex(long i, int r) {
+        super(i, r);
+    }
+
+    @Override
+    HilbertIndex newIndex(long i, int r) {
+        return new HilbertIndex(i, r);
+    }
+
+    @Override
+    long keyAt(int x, int y) {
+        return encode(x, y);
+    }
+
+    @Override
+    Pair<Integer, Integer> cellAt(long key) {
+        return decode(key);
+    }
+
+    //x and y are taken as unsigned 32-bit values
+    //Leading levels where both are 0 are skipped: 4 of them turn the frame back to where it was, so a zero nibble pair leaves state 0 alone and adds nothing to the key
+    public static long encode(int x, int y) {
+        long key = 0;
+        int state = 0, entry;
+        for (int shift = (31 - Integer.numberOfLeadingZeros(x | y | 1)) & ~3; shift >= 0; shift -= 4) {
+            entry = ENCODE[state << 8 | ((x >>> shift) & 15) << 4 | ((y >>> shift) & 15)];
+            key = key << 8 | entry >>> 2;
+            state = entry & 3;
+        }
+        return key;
+    }
+
+    public static long encode(Cartesian c) {
+        return encode(c.getX(), c.getY());
+    }
+
+    public static Pair<Integer, Integer> decode(long key) {
+        long cell = decodePacked(key);
+        return new Pair<>((int) (cell >>> 32), (int) cell);
+    }
+
+    //x in the top half, y in the bottom, so the hot paths don't allocate. Skips leading zero bytes the same way encode does
+    private static long decodePacked(long key) {
+        int x = 0, y = 0, state = 0, entry;
+        for (int shift = (63 - Long.numberOfLeadingZeros(key | 1)) & ~7; shift >= 0; shift -= 8) {
+            entry = DECODE[state << 8 | (int) ((key >>> shift) & 255)];
+            x = x << 4 | (entry >>> 6) & 15;
+            y = y << 4 | (entry >>> 2) & 15;
+            state = entry & 3;
+        }
+        return (long) x << 32 | Integer.toUnsignedLong(y);
+    }
+
+    @Override
+    boolean keyInRect(long key, int xMin, int yMin, int xMax, int yMax) {
+        long cell = decodePacked(key);
+        int x = (int) (cell >>> 32), y = (int) cell;
+        return Integer.compareUnsigned(x, xMin) >= 0 && Integer.compareUnsigned(x, xMax) <= 0 && Integer.compareUnsigned(y, yMin) >= 0 && Integer.compareUnsigned(y, yMax) <= 0;
+    }
+
+    //QuadIndex's descent, but following the curve's state down the levels instead of decoding every quad's corner - our BIGMIN
+    //Starts at the top level anything in the rectangle reaches; the levels above are all zeros, which only swap the frame once per level
+    @Override
+    long nextInRect(long key, int xMin, int yMin, int xMax, int yMax) {
+        int level = 32 - Integer.numberOfLeadingZeros(xMax | yMax);
+        if (level < 32 && Long.compareUnsigned(key, lowBits(level)) > 0) {
+            return -1L;
+        }
+        return nextInRect(key, level, 0L, (32 - level) & 1, 0L, 0L, Integer.toUnsignedLong(xMin), Integer.toUnsignedLong(yMin), Integer.toUnsignedLong(xMax), Integer.toUnsignedLong(yMax));
+    }
+
+    //The quad at level with keys starting at start, turned by state, with its lowest corner at (x, y)
+    private static long nextInRect(long key, int level, long start, int state, long x, long y, long xMin, long yMin, long xMax, long yMax) {
+        long side = 1L << level, childSide = side >>> 1, childKeys = lowBits(level - 1) + 1, childX, childY, next;
+        int tx, ty, swapped = state & 1, mirrored = state >>> 1;
+        if (x >= xMin && x + side - 1 <= xMax && y >= yMin && y + side - 1 <= yMax) {
+            return (Long.compareUnsigned(start, key) >= 0) ? start : key;
+        }
+        for (int quarter = 0; quarter < 4; quarter++, start += childKeys) {
+            if (Long.compareUnsigned(start + childKeys - 1, key) < 0) {
+                continue;
+            }
+            tx = quarter >>> 1;
+            ty = (quarter ^ tx) & 1;
+            childX = x + (((swapped == 0 ? tx : ty) ^ mirrored) * childSide);
+            childY = y + (((swapped == 0 ? ty : tx) ^ mirrored) * childSide);
+            if (childX + childSide - 1 < xMin || childX > xMax || childY + childSide - 1 < yMin || childY > yMax) {
+                continue;
+            }
+            next = nextInRect(key, level - 1, start, nextState(state, tx, ty), childX, childY, xMin, yMin, xMax, yMax);
+            if (next != -1L) {
+                return next;
+            }
+        }
+        return -1L;
+    }
+
+    //One level at a time, the way the tables are filled: turn the cell's bits into the current quad's frame, read off which quarter of the curve that is
+    //(0, 0) -> 0, (0, 1) -> 1, (1, 1) -> 2, (1, 0) -> 3, then turn the frame for the next level - the lower quarters are swapped, and the last one mirrored too
+    private static short encodeLevels(int state, int xNibble, int yNibble) {
+        int key = 0, xBit, yBit, tx, ty;
+        for (int level = 3; level >= 0; level--) {
+            xBit = (xNibble >>> level) & 1;
+            yBit = (yNibble >>> level) & 1;
+            tx = (((state & 1) == 0) ? xBit : yBit) ^ (state >>> 1);
+            ty = (((state & 1) == 0) ? yBit : xBit) ^ (state >>> 1);
+            key = key << 2 | ((3 * tx) ^ ty);
+            state = nextState(state, tx, ty);
+        }
+        return (short) (key << 2 | state);
+    }
+
+    private static short decodeLevels(int state, int keyByte) {
+        int xNibble = 0, yNibble = 0, quarter, tx, ty;
+        for (int level = 3; level >= 0; level--) {
+            quarter = (keyByte >>> (2 * level)) & 3;
+            tx = quarter >>> 1;
+            ty = (quarter ^ tx) & 1;
+            xNibble = xNibble << 1 | ((((state & 1) == 0) ? tx : ty) ^ (state >>> 1));
+            yNibble = yNibble << 1 | ((((state & 1) == 0) ? ty : tx) ^ (state >>> 1));
+            state = nextState(state, tx, ty);
+        }
+        return (short) ((xNibble << 4 | yNibble) << 2 | state);
+    }
+
+    private static int nextState(int state, int tx, int ty) {
+        return (ty == 0) ? state ^ 1 ^ (tx << 1) : state;
+    }
+}
@@ -7,13 +7,18 @@ interface Index<I extends Index<I>> extends Comparable<I> {
     @Override
     String toString();
 
-    int minRange(); //Not needed for a skiplist that doesn't use an range-based index... But I couldn't think of a good alternative
+    long minRange(); //Not needed for a skiplist that doesn't use an range-based index... But I couldn't think of a good alternative
+                     //Ranges are longs so 64-bit keys fit; compare them unsigned
 
-    int maxRange();
+    long maxRange();
 
     boolean contains(I i);
 
     boolean overlaps(I i);
 
     boolean isDivisible();
+
+    long toLong(); //Our key on its own, in the same order as compareTo when compared unsigned, and in the same terms as the ranges - what a node keeps instead of us
+
+    int getRes(); //How many levels of quad our range covers, or 0 for a single key - the range is toLong with its rightmost 2*res bits cleared or set
 }
@@ -19,14 +19,25 @@ class IntIndex implements Index<IntIndex> {
         return String.valueOf(index);
     }
 
+    //Flipping the sign bit keeps signed order when compared unsigned
     @Override
-    public int minRange() {
-        return index;
+    public long toLong() {
+        return index ^ Long.MIN_VALUE;
     }
 
     @Override
-    public int maxRange() {
-        return index;
+    public int getRes() {
+        return 0;
+    }
+
+    @Override
+    public long minRange() {
+        return toLong();
+    }
+
+    @Override
+    public long maxRange() {
+        return toLong();
     }
 
     /*
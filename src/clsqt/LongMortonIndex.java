@@ -0,0 +1,276 @@
+package clsqt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+//MortonIndex widened to a long: 32 bits per axis instead of 16, so coordinates don't have to be squeezed into 65536x65536
+//Everything compares unsigned, same as MortonIndex, but ranges come out of the Index methods as-is instead of widened. The quad logic itself is QuadIndex's
+class LongMortonIndex extends QuadIndex {
+    private static final long X_BITS = 0x5555555555555555L, Y_BITS = 0xaaaaaaaaaaaaaaaaL;
+
+    LongMortonIndex(long i) {
+        this(i, 0);
+    }
+
+    LongMortonIndex(int x, int y, int r) {
+        super(encode(x, y), r);
+    }
+
+    LongMortonIndex(Cartesian c, int r) {
+        this(c.getX(), c.getY(), r);
+    }
+
+    LongMortonIndex(long i, int r) {
+        super(i, r);
+    }
+
+    @Override
+    LongMortonIndex newIndex(long i, int r) {
+        return new LongMortonIndex(i, r);
+    }
+
+    @Override
+    long keyAt(int x, int y) {
+        return encode(x, y);
+    }
+
+    @Override
+    Pair<Integer, Integer> cellAt(long key) {
+        return decode(key);
+    }
+
+    //x and y are taken as unsigned 32-bit values
+    public static long encode(int x, int y) {
+        return interleaveZeros(x) | interleaveZeros(y) << 1;
+    }
+
+    public static long encode(Cartesian c) {
+        return encode(c.getX(), c.getY());
+    }
+
+    public static Pair<Integer, Integer> decode(LongMortonIndex i) {
+        return decode(i.index);
+    }
+
+    public static Pair<Integer, Integer> decode(long encoded) {
+        return new Pair<>(deinterleave(encoded), deinterleave(encoded >>> 1));
+    }
+
+    public static LongMortonIndex getNorth(LongMortonIndex i) {
+        if (i.getQuadrant() == 2 || i.getQuadrant() == 3) {
+            return new LongMortonIndex(i.index ^ (2L << i.res * 2), i.res);
+        }
+        else {
+            return new LongMortonIndex((i.index ^ (2L << ((i.res + 1) * 2)) | (2L << i.res * 2)), i.res);
+        }
+    }
+
+    public static LongMortonIndex getSouth(LongMortonIndex i) {
+        if (i.getQuadrant() == 0 || i.getQuadrant() == 1) {
+            return new LongMortonIndex(i.index ^ (2L << i.res * 2), i.res);
+        }
+        else {
+            return new LongMortonIndex((i.index ^ (2L << ((i.res + 1) * 2)) ^ (2L << i.res * 2)), i.res);
+        }
+    }
+
+    public static LongMortonIndex getEast(LongMortonIndex i) {
+        if (i.getQuadrant() == 0 || i.getQuadrant() == 2) {
+            return new LongMortonIndex(i.index ^ (1L << i.res * 2), i.res);
+        }
+        else {
+            return new LongMortonIndex((i.index ^ (1L << ((i.res + 1) * 2)) ^ (1L << i.res * 2)), i.res);
+        }
+    }
+
+    public static LongMortonIndex getWest(LongMortonIndex i) {
+        if (i.getQuadrant() == 1 || i.getQuadrant() == 3) {
+            return new LongMortonIndex(i.index ^ (1L << i.res * 2), i.res);
+        }
+        else {
+            return new LongMortonIndex((i.index ^ (1L << ((i.res + 1) * 2)) ^ (1L << i.res * 2)), i.res);
+        }
+    }
+
+    //The walk behind rectSearch, done with our own decomposition, BIGMIN and bit masks instead of going through decode
+    @Override
+    ArrayList<Pair<QuadIndex, QuadIndex>> rectIntervals(int x1, int y1, int x2, int y2, int maxIntervals, double falsePositiveRatio) {
+        return decompose(x1, y1, x2, y2, maxIntervals, falsePositiveRatio);
+    }
+
+    @Override
+    long nextInRect(long key, int xMin, int yMin, int xMax, int yMax) {
+        return nextInBox(key, encode(xMin, yMin), encode(xMax, yMax));
+    }
+
+    @Override
+    boolean keyInRect(long key, int xMin, int yMin, int xMax, int yMax) {
+        return inBox(key, encode(xMin, yMin), encode(xMax, yMax));
+    }
+
+    //The first key of a Morton quad is its corner already
+    @Override
+    protected Pair<Integer, Integer> corner() {
+        return decode(minRange());
+    }
+
+    protected static ArrayList<Pair<QuadIndex, QuadIndex>> decompose(int x1, int y1, int x2, int y2) {
+        return decompose(x1, y1, x2, y2, MAX_INTERVALS, FALSE_POSITIVES);
+    }
+
+    //Splits the rectangle into sorted Morton intervals, always splitting whichever one covers the most keys outside the rectangle next,
+    //until there are maxIntervals of them or at most falsePositiveRatio of the keys they cover are outside. Splits are the same as decomposeByRatio's
+    //Fewer intervals means fewer searches but more points to throw away; walking with nextInBox, rectSearch gets away with very few
+    protected static ArrayList<Pair<QuadIndex, QuadIndex>> decompose(int x1, int y1, int x2, int y2, int maxIntervals, double falsePositiveRatio) {
+        PriorityQueue<Block> blocks = new PriorityQueue<>(Comparator.comparingDouble((Block b) -> b.waste).reversed());
+        Block block = new Block(x1, y1, x2, y2);
+        double covered = block.length, waste = block.waste;
+        int pivot, bit;
+        blocks.add(block);
+        while (blocks.size() < maxIntervals && waste > falsePositiveRatio * covered) {
+            block = blocks.poll();
+            //Only the differing bits below the shared prefix are split on, so the pivot keeps the prefix
+            bit = 63 - Long.numberOfLeadingZeros(block.start ^ block.end);
+            Block low, high;
+            if ((bit & 1) == 1) {
+                pivot = deinterleave((block.end & (-1L << bit)) >>> 1) - 1;
+                low = new Block(block.x1, block.y1, block.x2, pivot);
+                high = new Block(block.x1, pivot + 1, block.x2, block.y2);
+            }
+            else {
+                pivot = deinterleave(block.end & (-1L << bit)) - 1;
+                low = new Block(block.x1, block.y1, pivot, block.y2);
+                high = new Block(pivot + 1, block.y1, block.x2, block.y2);
+            }
+            covered += low.length + high.length - block.length;
+            waste += low.waste + high.waste - block.waste;
+            blocks.add(low);
+            blocks.add(high);
+        }
+        Block[] sorted = blocks.toArray(new Block[0]);
+        Arrays.sort(sorted, (b1, b2) -> Long.compareUnsigned(b1.start, b2.start));
+        ArrayList<Pair<QuadIndex, QuadIndex>> returnList = new ArrayList<>(sorted.length);
+        for (Block b : sorted) {
+            appendInterval(returnList, b.start, b.end);
+        }
+        return returnList;
+    }
+
+    //A sub-rectangle waiting to be split, with the interval it would take up as it is
+    private static final class Block {
+        final int x1, y1, x2, y2;
+        final long start, end;
+        final double length, waste; //Keys covered, and how many of them are outside the rectangle
+
+        Block(int x1, int y1, int x2, int y2) {
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+            start = encode(x1, y1);
+            end = encode(x2, y2);
+            length = unsignedToDouble(end - start) + 1;
+            waste = length - (double) (Integer.toUnsignedLong(x2) - Integer.toUnsignedLong(x1) + 1) * (double) (Integer.toUnsignedLong(y2) - Integer.toUnsignedLong(y1) + 1);
+        }
+    }
+
+    //The smallest code above key inside the box from boxMin to boxMax (the codes of its low and high corners), for a key outside it - BIGMIN, after Tropf and Herzog
+    //Goes down the bits, keeping the box's corners in step: where key is below the box, the answer is the box's low corner;
+    //where the box straddles key's bit, the answer so far is the upper half's low corner and we carry on in the lower half (or in the upper one, if key is there)
+    //Returns boxMin if key is below the whole box, and something past boxMax (unsigned) if nothing in the box comes after key
+    static long nextInBox(long key, long boxMin, long boxMax) {
+        long bigMin = boxMax + 1, bit, dimension, below;
+        for (int b = 63; b >= 0; b--) {
+            bit = 1L << b;
+            dimension = ((b & 1) == 0) ? X_BITS : Y_BITS;
+            below = dimension & (bit - 1); //This dimension's bits under b
+            if ((boxMin & bit) != (boxMax & bit)) {
+                //Box straddles this bit: it splits into a lower half ending at ..0111 and an upper half starting at ..1000
+                if ((key & bit) == 0) {
+                    bigMin = (boxMin & ~below) | bit;
+                    boxMax = (boxMax & ~bit) | below;
+                }
+                else {
+                    boxMin = (boxMin & ~below) | bit;
+                }
+            }
+            else if ((key & bit) != (boxMin & bit)) {
+                //Box is all on one side of key from here: below it, the box's low corner is the answer; above it, whatever we saved
+                return ((key & bit) == 0) ? boxMin : bigMin;
+            }
+        }
+        return bigMin;
+    }
+
+    //Whether key is inside the box from boxMin to boxMax, without decoding anything: masking out one axis keeps that axis' order
+    static boolean inBox(long key, long boxMin, long boxMax) {
+        return Long.compareUnsigned(key & X_BITS, boxMin & X_BITS) >= 0 && Long.compareUnsigned(key & X_BITS, boxMax & X_BITS) <= 0
+                && Long.compareUnsigned(key & Y_BITS, boxMin & Y_BITS) >= 0 && Long.compareUnsigned(key & Y_BITS, boxMax & Y_BITS) <= 0;
+    }
+
+    //The original fixed-ratio recursion - same idea as MortonIndex.decompose, on 64-bit codes. Kept as the baseline DecomposeBenchmark compares against
+    //The arithmetic shift on bitmask is deliberate: the mask grows to cover every bit down to the first differing one, so the pivot keeps the shared prefix
+    protected static ArrayList<Pair<QuadIndex, QuadIndex>> decomposeByRatio(int x1, int y1, int x2, int y2) {
+        double decompositionRatio = 0.5;
+        long bitmask = 0x8000000000000000L;
+        boolean isY = true;
+        long i1 = encode(x1, y1);
+        long i2 = encode(x2, y2);
+        int pivot;
+        ArrayList<Pair<QuadIndex, QuadIndex>> returnList = new ArrayList<Pair<QuadIndex, QuadIndex>>();
+        double area = (double) (Integer.toUnsignedLong(x2) - Integer.toUnsignedLong(x1) + 1) * (double) (Integer.toUnsignedLong(y2) - Integer.toUnsignedLong(y1) + 1);
+        if (area / (unsignedToDouble(i2 - i1) + 1) >= decompositionRatio) {
+            returnList.add(new Pair<>(new LongMortonIndex(i1), new LongMortonIndex(i2)));
+        }
+        else {
+            while ((i1 & bitmask) == (i2 & bitmask)) {
+                bitmask >>= 1;
+                isY = !isY;
+            }
+            if (isY == true) {
+                pivot = deinterleave((i2 & bitmask) >>> 1) - 1;
+                returnList.addAll(decomposeByRatio(x1, y1, x2, pivot));
+                returnList.addAll(decomposeByRatio(x1, pivot + 1, x2, y2));
+            }
+            else {
+                pivot = deinterleave(i2 & bitmask) - 1;
+                returnList.addAll(decomposeByRatio(x1, y1, pivot, y2));
+                returnList.addAll(decomposeByRatio(pivot + 1, y1, x2, y2));
+            }
+        }
+        return returnList;
+    }
+
+    //Blocks come out sorted, so like QuadIndex.appendInterval, one starting right where the last ended extends it
+    private static void appendInterval(ArrayList<Pair<QuadIndex, QuadIndex>> intervals, long start, long end) {
+        if (!intervals.isEmpty() && intervals.get(intervals.size() - 1).getR().index + 1 == start) {
+            intervals.get(intervals.size() - 1).setR(new LongMortonIndex(end));
+        }
+        else {
+            intervals.add(new Pair<>(new LongMortonIndex(start), new LongMortonIndex(end)));
+        }
+    }
+
+    //The 64-bit version of the same magic-mask spread: each step moves the top half of every field halfway to the end (what PDEP with 0x5555... does in one instruction)
+    private static long interleaveZeros(int i) {
+        long x = Integer.toUnsignedLong(i);
+        x = (x ^ (x << 16)) & 0x0000ffff0000ffffL;
+        x = (x ^ (x << 8)) & 0x00ff00ff00ff00ffL;
+        x = (x ^ (x << 4)) & 0x0f0f0f0f0f0f0f0fL;
+        x = (x ^ (x << 2)) & 0x3333333333333333L;
+        x = (x ^ (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    private static int deinterleave(long x) {
+        x &= 0x5555555555555555L;
+        x = (x ^ (x >>> 1)) & 0x3333333333333333L;
+        x = (x ^ (x >>> 2)) & 0x0f0f0f0f0f0f0f0fL;
+        x = (x ^ (x >>> 4)) & 0x00ff00ff00ff00ffL;
+        x = (x ^ (x >>> 8)) & 0x0000ffff0000ffffL;
+        x = (x ^ (x >>> 16)) & 0x00000000ffffffffL;
+        return (int) x;
+    }
+}
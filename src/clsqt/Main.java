@@ -1,8 +1,12 @@
 package clsqt;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.stream.Stream;
 
 public class Main {
     static private ArrayList<MortonIndex> keys = new ArrayList<>();
@@ -36,6 +40,139 @@ public class Main {
         System.out.print("End");
     }
 
+    //Range-sized keys in ConcurrentSkiplist: a cell inside a quad has to find the quad, which sorts before it, for get, put and remove alike
+    //Then threads each working on quads of their own, so the end state is known even though they race on the same list
+    static void testConcurrentRanges() throws Exception {
+        ConcurrentSkiplist<MortonIndex, String> csl = new ConcurrentSkiplist<>(new MortonIndex(0, 0, 0), new MortonIndex(65535, 65535, 0));
+        csl.put(new MortonIndex(0, 0, 2), "quad");
+        if (!"quad".equals(csl.get(new MortonIndex(1, 1, 0)))) {
+            throw new Exception("Cell inside a quad not found");
+        }
+        csl.put(new MortonIndex(3, 0, 0), "cell");
+        if (csl.size() != 1 || !"cell".equals(csl.get(new MortonIndex(0, 3, 0)))) {
+            throw new Exception("Cell inside a quad linked a second node: " + csl);
+        }
+        if (!csl.remove(new MortonIndex(2, 2, 0)) || csl.size() != 0 || csl.get(new MortonIndex(0, 0, 2)) != null) {
+            throw new Exception("Cell inside a quad didn't remove it");
+        }
+        int threads = 4, quads = 2000, rounds = 20;
+        String[] failure = new String[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int row = t;
+            workers[t] = new Thread(() -> {
+                Random rng = new Random(row);
+                MortonIndex quad;
+                for (int r = 0; r < rounds; r++) {
+                    for (int q = 0; q < quads; q++) {
+                        quad = new MortonIndex(4 * q, 4 * row, 2);
+                        csl.put(quad, "quad");
+                        csl.put(new MortonIndex(4 * q + rng.nextInt(4), 4 * row + rng.nextInt(4), 0), row + ":" + q);
+                        if (!(row + ":" + q).equals(csl.get(new MortonIndex(4 * q + rng.nextInt(4), 4 * row + rng.nextInt(4), 0)))) {
+                            failure[0] = "Put into a quad lost at " + quad;
+                        }
+                        if (r < rounds - 1 && (!csl.remove(new MortonIndex(4 * q + rng.nextInt(4), 4 * row + rng.nextInt(4), 0)) || csl.get(quad) != null)) {
+                            failure[0] = "Remove from a quad missed at " + quad;
+                        }
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure[0] != null) {
+            throw new Exception(failure[0]);
+        }
+        if (csl.size() != threads * quads) {
+            throw new Exception("Expected " + threads * quads + " quads, got " + csl.size());
+        }
+        for (int t = 0; t < threads; t++) {
+            for (int q = 0; q < quads; q++) {
+                if (!(t + ":" + q).equals(csl.get(new MortonIndex(4 * q, 4 * t, 2)))) {
+                    throw new Exception("Wrong value for " + new MortonIndex(4 * q, 4 * t, 2));
+                }
+            }
+        }
+        System.out.print("Concurrent ranges ok");
+    }
+
+    //A move is logged where the value was and replayed through the codec's moved, so it has to come back right after a reopen
+    static void testLogMove() throws Exception {
+        Path dir = Files.createTempDirectory("wal");
+        Point p = new Point(10, 10);
+        WriteAheadLog<Point> wal = new WriteAheadLog<>(dir, new Quadtree<>(10), ValueCodec.POINTS);
+        wal.add(p);
+        if (!wal.move(p, 40, 40)) {
+            throw new Exception("Move failed");
+        }
+        wal.close();
+        wal = new WriteAheadLog<>(dir, new Quadtree<>(10), ValueCodec.POINTS);
+        if (wal.getTree().rectSearch(40, 40, 40, 40).size() != 1 || !wal.getTree().rectSearch(10, 10, 10, 10).isEmpty()) {
+            throw new Exception("Move lost on reopen");
+        }
+        wal.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(f -> f.toFile().delete());
+        }
+        System.out.print("Log move ok");
+    }
+
+    //The same churn on a tree in slabs and one on the heap has to leave them answering alike, and a remove followed by an add has to reuse slots, not grow
+    static void testOffHeap() throws Exception {
+        int dim = 1 << 10, count = 20000;
+        Quadtree<Point> heap = new Quadtree<>(10, Quadtree.Curve.MORTON, 4), slabs = new Quadtree<>(10, Quadtree.Curve.MORTON, 4);
+        Point[] onHeap = new Point[count], inSlabs = new Point[count];
+        Random rng = new Random(3);
+        for (int i = 0; i < count; i++) {
+            onHeap[i] = new Point(rng.nextInt(dim), rng.nextInt(dim));
+            inSlabs[i] = new Point(onHeap[i].getX(), onHeap[i].getY());
+            heap.add(onHeap[i]);
+            slabs.add(inSlabs[i]);
+        }
+        slabs.storeOffHeap(true);
+        for (int i = 0; i < count; i++) {
+            int x = rng.nextInt(dim), y = rng.nextInt(dim);
+            if (heap.move(onHeap[i], x, y) != slabs.move(inSlabs[i], x, y)) {
+                throw new Exception("Move disagreed for " + onHeap[i]);
+            }
+            onHeap[i].moveTo(x, y);
+            inSlabs[i].moveTo(x, y);
+            if (i % 3 == 0 && heap.remove(onHeap[i]) != slabs.remove(inSlabs[i])) {
+                throw new Exception("Remove disagreed for " + onHeap[i]);
+            }
+        }
+        long bytes = slabs.offHeapBytes();
+        for (int i = 1; i < count; i += 3) {
+            if (!slabs.remove(inSlabs[i]) || !slabs.add(inSlabs[i])) {
+                throw new Exception("Remove and add again failed for " + inSlabs[i]);
+            }
+        }
+        if (bytes == 0 || slabs.offHeapBytes() != bytes) {
+            throw new Exception("Slabs went from " + bytes + " to " + slabs.offHeapBytes() + " bytes over removes and adds");
+        }
+        for (int q = 0; q < 200; q++) {
+            int x = rng.nextInt(dim), y = rng.nextInt(dim), w = rng.nextInt(dim / 4);
+            if (heap.rectSearch(x, y, x + w, y + w).size() != slabs.rectSearch(x, y, x + w, y + w).size()) {
+                throw new Exception("rectSearch disagreed at " + x + ", " + y + ", " + w);
+            }
+            if (heap.count(x, y, x + w, y + w) != slabs.count(x, y, x + w, y + w)) {
+                throw new Exception("count disagreed at " + x + ", " + y + ", " + w);
+            }
+        }
+        slabs.storeOffHeap(false);
+        for (int i = 0; i < count; i++) {
+            if (heap.contains(onHeap[i]) != slabs.contains(inSlabs[i])) {
+                throw new Exception("Back on the heap, contains disagreed for " + onHeap[i]);
+            }
+        }
+        if (slabs.offHeapBytes() != 0) {
+            throw new Exception("Slabs still held after moving back to the heap");
+        }
+        System.out.print("Off-heap ok");
+    }
+
     static void add(Index index, char character) {
         control.put((MortonIndex) index, character);
         sltest.put((MortonIndex) index, character);
@@ -49,14 +49,14 @@ class MortonIndex implements Index<MortonIndex> {
 
     @Override
     public boolean contains(MortonIndex i) {
-        return Integer.compareUnsigned(minRange(), i.minRange()) <= 0 && Integer.compareUnsigned(maxRange(), i.maxRange()) >= 0;
+        return minRange() <= i.minRange() && maxRange() >= i.maxRange();
     }
 
     @Override
     public boolean overlaps(MortonIndex i) {
         //No overlap if both i's min and max are less than our min, OR both min and max are greater than our max
-        return !((Integer.compareUnsigned(minRange(), i.minRange()) > 0 && Integer.compareUnsigned(minRange(), i.maxRange()) > 0) ||
-                (Integer.compareUnsigned(maxRange(), i.minRange()) < 0 && Integer.compareUnsigned(maxRange(), i.maxRange()) < 0));
+        return !((minRange() > i.minRange() && minRange() > i.maxRange()) ||
+                (maxRange() < i.minRange() && maxRange() < i.maxRange()));
     }
 
     @Override
@@ -68,18 +68,24 @@ class MortonIndex implements Index<MortonIndex> {
         return index;
     }
 
-    public int minRange() {
+    @Override
+    public long toLong() {
+        return Integer.toUnsignedLong(index);
+    }
+
+    //Index ranges are longs; ours are widened unsigned so plain long comparisons work on them
+    public long minRange() {
         //Returns index with rightmost 2*res bits to zero
-        return minRange(res);
+        return Integer.toUnsignedLong(minRange(res));
     }
 
     public int minRange(int r) {
         return index >>> (2 * r) << (2 * r);
     }
 
-    public int maxRange() {
+    public long maxRange() {
         //Returns index with rightmost 2*res bits to one
-        return maxRange(res);
+        return Integer.toUnsignedLong(maxRange(res));
     }
 
     public int maxRange(int r ) {
@@ -122,6 +128,7 @@ class MortonIndex implements Index<MortonIndex> {
         }
     }
 
+    @Override
     public int getRes() {
         return res;
     }
@@ -140,7 +147,8 @@ class MortonIndex implements Index<MortonIndex> {
     public static int getMaxDiffPowOfTwo(int index1, int index2) {
         int r = 0;
         //Conveniently avoids issues with the signum and having to call the method with the indexes in the right order
-        while (Math.abs((index1 >>> (2 * (r + 1))) - (index2 >>> (2 * (r + 1)))) > 0) {
+        //Capped at 15 since a shift of 32 wraps around to 0 and would never terminate for full 16-bit coordinates
+        while (r < 15 && Math.abs((index1 >>> (2 * (r + 1))) - (index2 >>> (2 * (r + 1)))) > 0) {
             r++;
         }
         return r;
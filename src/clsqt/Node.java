@@ -2,20 +2,59 @@ package clsqt;
 
 //We don't *need* all our values to be the same class, but it would make life easier for the user, right?
 //Could make life harder if some are singles and some are bins... could default to returning an array/collection of V
+//Went with both: a node holds one value, or a bucket of them with a key each. getValue is the only one or a bucket's first; the rest go through size and getValue(j)
 abstract class Node<I extends Index<I>, V> implements Comparable<Node<I, V>> {
+    //Nodes keep their key and resolution as a bare long and byte rather than an index object - see Index.toLong and getRes. Comparisons and
+    //containment are masks on them, so the long overloads below need no index at all
     @Override
-    abstract public int compareTo(Node<I, V> n);
-    abstract public int compareTo(I i);
+    public int compareTo(Node<I, V> n) {
+        return Long.compareUnsigned(getKey(), n.getKey());
+    }
+
+    public int compareTo(I i) {
+        return compareTo(i.toLong());
+    }
+
+    abstract int compareTo(long key);
     abstract V getValue();
     abstract V setValue(V v);
+    abstract int size(); //How many values we hold - 0 for the head and tail
+    abstract boolean isBucket(); //Whether our values carry their own keys. A single value's key is the node's
+    abstract V getValue(int j);
+    abstract long getKey(int j); //Only for buckets
+    abstract void makeBucket(long key); //Turns our single value into a bucket of one, at key
+    abstract void addValue(long key, V v); //Only for buckets - keeps them sorted by key
+    abstract V removeValue(int j); //Only for buckets
     abstract int getMaxHeight();
-    abstract boolean containsIndex(I i);
-    abstract boolean overlapsIndex(I i);
+    boolean containsIndex(I i) {
+        return containsKey(i.toLong(), i.getRes());
+    }
+
+    boolean overlapsIndex(I i) {
+        return overlapsKey(i.toLong(), i.getRes());
+    }
+
+    abstract boolean containsKey(long key, int res); //Whether our range holds all of the quad of resolution res at key
+    abstract boolean overlapsKey(long key, int res);
     abstract boolean hasNext(int h);
     abstract boolean isEmpty();
     abstract Node setNext(int h, Node<I, V> n); //Return the previous next node? Potential shortcut but unused thus far
     abstract Node<I, V> getNext(int h);
     abstract Node<I, V> getNext();
-    abstract I getIndex();
+    abstract long getKey(); //A bucket's is its quad's, keyed at its lowest value's key
+    abstract int getRes();
+    abstract void setKey(long key); //Only safe while the key stays inside our range, or the skiplist order breaks
+    abstract void setRes(int res);
+
+    long minRange() {
+        return getKey() & ~QuadIndex.lowBits(getRes());
+    }
+
+    long maxRange() {
+        return getKey() | QuadIndex.lowBits(getRes());
+    }
+
+    abstract Aggregate getAggregate(int h); //The values from this node up to its next one on even level h - only kept while the skiplist tracks aggregates
+    abstract void setAggregate(int h, Aggregate a);
     abstract public String toString();
 }
@@ -8,6 +8,11 @@ public class Point implements Cartesian {
         y = newY;
     }
 
+    void moveTo(int newX, int newY) {
+        x = newX;
+        y = newY;
+    }
+
     @Override
     public int getX() {
         return x;
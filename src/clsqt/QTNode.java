@@ -1,35 +1,76 @@
 package clsqt;
 
+import java.util.Arrays;
+
 class QTNode<I extends Index<I>, V> extends Node<I, V> {
     //It's possible for points to overlap and our linear quadtree's resolution is limited, so we have to accommodate multiple points in one quad
     //It might be more correct to call this a skipset?
     private Node<I, V>[] nextNodes; //Nodes will be created and destroyed all the time; probably not worth making an ArrayList
-    private V value;
-    private I index;
+    private V value; //Our value, unless we're a bucket
+    private long key; //Our key and resolution inline instead of an index object - a bucket's quad is keyed at its lowest value's key
+    private byte res;
+    private long[] keys; //A bucket's values with their keys, sorted by key - only allocated once a quad has to hold more than one value
+    private Object[] values;
+    private int size;
+    private Aggregate[] aggregates; //One per even level from 2 up; only allocated once there's something to keep
 
 
     QTNode(I i, V v, int h) {
+        this(i.toLong(), i.getRes(), v, h);
+    }
+
+    QTNode(long key, int res, V v, int h) {
         nextNodes = new Node[h+1];
-        index = i;
+        this.key = key;
+        this.res = (byte) res;
         value = v;
     }
+
+    //A bucket of the first size values and keys, which we keep
+    QTNode(long key, int res, long[] keys, Object[] values, int size, int h) {
+        nextNodes = new Node[h+1];
+        this.key = key;
+        this.res = (byte) res;
+        this.keys = keys;
+        this.values = values;
+        this.size = size;
+    }
     @Override
-    public int compareTo(Node<I, V> n) {
-        return index.compareTo(n.getIndex());
+    int compareTo(long key) {
+        return Long.compareUnsigned(this.key, key);
     }
 
     @Override
-    public int compareTo(I i) {
-        return index.compareTo(i);
+    long getKey() {
+        return key;
     }
 
-    public I getIndex() {
-        return index;
+    @Override
+    int getRes() {
+        return res;
     }
 
+    @Override
+    void setKey(long key) {
+        this.key = key;
+    }
+
+    @Override
+    void setRes(int res) {
+        this.res = (byte) res;
+    }
+
+    //Without an index we don't know our curve, so the key is all there is to show
     @Override
     public String toString() {
-        return index.toString() + "=" + value.toString();
+        if (keys == null) {
+            return Long.toUnsignedString(key) + "/" + res + "=" + value.toString();
+        }
+        StringBuilder stringBuilder = new StringBuilder(Long.toUnsignedString(key) + "/" + res + "=[");
+        for (int j = 0; j < size; j++) {
+            stringBuilder.append((j == 0) ? "" : ", ").append(values[j]);
+        }
+        return stringBuilder.append("]").toString();
     }
 
     public int getMaxHeight() {
@@ -37,13 +78,13 @@ class QTNode<I extends Index<I>, V> extends Node<I, V> {
     }
 
     @Override
-    public boolean containsIndex(I i) {
-        return index.contains(i);
+    boolean containsKey(long key, int res) {
+        return Long.compareUnsigned(minRange(), key & ~QuadIndex.lowBits(res)) <= 0 && Long.compareUnsigned(maxRange(), key | QuadIndex.lowBits(res)) >= 0;
     }
 
     @Override
-    boolean overlapsIndex(I i) {
-        return index.overlaps(i);
+    boolean overlapsKey(long key, int res) {
+        return !(Long.compareUnsigned(maxRange(), key & ~QuadIndex.lowBits(res)) < 0 || Long.compareUnsigned(minRange(), key | QuadIndex.lowBits(res)) > 0);
     }
 
     public boolean hasNext(int h) {
@@ -52,7 +93,7 @@ class QTNode<I extends Index<I>, V> extends Node<I, V> {
 
     @Override
     public boolean isEmpty() {
-        return value == null;
+        return size() == 0;
     }
 
     //If return value isn't used at all, should remove
@@ -71,14 +112,90 @@ class QTNode<I extends Index<I>, V> extends Node<I, V> {
         return nextNodes[0];
     }
 
+    @Override
+    Aggregate getAggregate(int h) {
+        return (aggregates == null) ? null : aggregates[h / 2 - 1];
+    }
+
+    @Override
+    void setAggregate(int h, Aggregate a) {
+        if (aggregates == null) {
+            aggregates = new Aggregate[getMaxHeight() / 2];
+        }
+        aggregates[h / 2 - 1] = a;
+    }
+
     public V getValue() {
-        return value;
+        return (keys == null) ? value : (V) values[0];
     }
 
     @Override
     V setValue(V v) {
-        V oldValue = value;
-        value = v;
+        V oldValue = getValue();
+        if (keys == null) {
+            value = v;
+        }
+        else {
+            values[0] = v;
+        }
+        return oldValue;
+    }
+
+    @Override
+    int size() {
+        if (keys == null) {
+            return (value == null) ? 0 : 1;
+        }
+        return size;
+    }
+
+    @Override
+    boolean isBucket() {
+        return keys != null;
+    }
+
+    @Override
+    V getValue(int j) {
+        return (keys == null) ? value : (V) values[j];
+    }
+
+    @Override
+    long getKey(int j) {
+        return keys[j];
+    }
+
+    @Override
+    void makeBucket(long key) {
+        keys = new long[] {key, 0};
+        values = new Object[] {value, null};
+        size = 1;
+        value = null;
+    }
+
+    @Override
+    void addValue(long key, V v) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        int j = size;
+        //Buckets are small, so shifting beats a search
+        while (j > 0 && Long.compareUnsigned(keys[j - 1], key) > 0) {
+            keys[j] = keys[j - 1];
+            values[j] = values[j - 1];
+            j--;
+        }
+        keys[j] = key;
+        values[j] = v;
+        size++;
+    }
+
+    @Override
+    V removeValue(int j) {
+        V oldValue = (V) values[j];
+        System.arraycopy(keys, j + 1, keys, j, size - j - 1);
+        System.arraycopy(values, j + 1, values, j, size - j - 1);
+        values[--size] = null;
         return oldValue;
     }
 }
@@ -0,0 +1,297 @@
+package clsqt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+//A 64-bit key on a quadrant-recursive space-filling curve, masked down to a quad of resolution res - what Quadtree keys its skiplist with
+//Any such curve visits each aligned 2^r square in one contiguous run of 4^r keys, starting at a multiple of 4^r, so all the quad logic here is just masks on the key
+//and holds whatever order the curve puts the four quadrants in. Subclasses only say how a cell maps to a key and back
+//All keys of one tree come from the same curve; comparing keys from two different curves means nothing
+abstract class QuadIndex implements Index<QuadIndex> {
+    static final int MAX_INTERVALS = 64; //The default decomposition budget: enough that walking the intervals without jumping stays close to what the old fixed ratio gave
+    static final double FALSE_POSITIVES = 0.25;
+    protected long index;
+    protected int res; //Masks the rightmost 2*res bits of our stored index; limited to 32 for our 64-bit long. 0 = 1x1 quads, 1 = 2x2 quads, etc
+
+    QuadIndex(long i, int r) {
+        index = i;
+        res = r;
+    }
+
+    //A key of our own curve, for building children, neighbors and intervals without knowing which curve we're on
+    abstract QuadIndex newIndex(long i, int r);
+
+    //x and y are taken as unsigned 32-bit values
+    abstract long keyAt(int x, int y);
+
+    abstract Pair<Integer, Integer> cellAt(long key);
+
+    @Override
+    public int compareTo(QuadIndex i) {
+        return Long.compareUnsigned(index, i.index);
+    }
+
+    @Override
+    public boolean contains(QuadIndex i) {
+        return Long.compareUnsigned(minRange(), i.minRange()) <= 0 && Long.compareUnsigned(maxRange(), i.maxRange()) >= 0;
+    }
+
+    @Override
+    public boolean overlaps(QuadIndex i) {
+        return !(Long.compareUnsigned(maxRange(), i.minRange()) < 0 || Long.compareUnsigned(minRange(), i.maxRange()) > 0);
+    }
+
+    @Override
+    public boolean isDivisible() {
+        return !(res == 0);
+    }
+
+    @Override
+    public long toLong() {
+        return index;
+    }
+
+    @Override
+    public long minRange() {
+        return minRange(res);
+    }
+
+    public long minRange(int r) {
+        return index & ~lowBits(r);
+    }
+
+    @Override
+    public long maxRange() {
+        return maxRange(res);
+    }
+
+    public long maxRange(int r) {
+        return index | lowBits(r);
+    }
+
+    //The rightmost 2*r bits set. Java masks shift distances to 6 bits, so r = 32 (the whole space) needs its own case
+    static long lowBits(int r) {
+        return (r >= 32) ? -1L : (1L << (2 * r)) - 1;
+    }
+
+    @Override
+    public int getRes() {
+        return res;
+    }
+
+    protected void setRes(int r) {
+        res = r;
+    }
+
+    //Only safe while i stays inside our range, or the skiplist order breaks
+    protected void setIndex(long i) {
+        index = i;
+    }
+
+    //Assumes i is within the bounds of this index
+    protected int getSplitSize(QuadIndex i) {
+        return getMaxDiffPowOfTwo(index, i.index);
+    }
+
+    //How many r*2 bits can we erase on the right before our two indexes overlap? Same answer as MortonIndex's loop, but straight from the highest differing bit
+    public static int getMaxDiffPowOfTwo(long index1, long index2) {
+        long diff = index1 ^ index2;
+        return (diff == 0) ? 0 : (63 - Long.numberOfLeadingZeros(diff)) / 2;
+    }
+
+    //Which quarter of its parent's run of keys we're in - which corner that is depends on the curve
+    protected int getQuadrant() {
+        return getQuadrant(res);
+    }
+
+    protected int getQuadrant(int r) {
+        return (int) ((index >>> (2 * r)) & 3L);
+    }
+
+    protected long getParentStartLoc() {
+        return index & ~lowBits(res + 1);
+    }
+
+    protected boolean isCoQuad(QuadIndex i) {
+        return (getParentStartLoc() == i.getParentStartLoc() && res == i.res && getQuadrant() != i.getQuadrant());
+    }
+
+    protected void expand() {
+        res++;
+    }
+
+    //The lowest x and y of our quad. Every cell in it shares the bits above res, so any one of them gives the corner
+    protected Pair<Integer, Integer> corner() {
+        Pair<Integer, Integer> cell = cellAt(index);
+        int mask = (res >= 32) ? 0 : ~((1 << res) - 1);
+        return new Pair<>(cell.getL() & mask, cell.getR() & mask);
+    }
+
+    //The quads one side-length over in x and y, on our curve
+    protected QuadIndex neighbor(int dx, int dy) {
+        Pair<Integer, Integer> corner = corner();
+        long side = 1L << res;
+        return newIndex(keyAt((int) (corner.getL() + dx * side), (int) (corner.getR() + dy * side)), res);
+    }
+
+    //The i-th quarter of our quad in key order
+    protected QuadIndex child(long quadrant) {
+        return newIndex(minRange() | (quadrant << (2 * (res - 1))), res - 1);
+    }
+
+    ArrayList<Pair<QuadIndex, QuadIndex>> rectIntervals(int x1, int y1, int x2, int y2) {
+        return rectIntervals(x1, y1, x2, y2, MAX_INTERVALS, FALSE_POSITIVES);
+    }
+
+    //Splits the rectangle into sorted intervals of our curve, always splitting whichever quad covers the most cells outside the rectangle next,
+    //until there are about maxIntervals of them or at most falsePositiveRatio of the keys they cover are outside. Quads are dropped as soon as they miss the rectangle
+    //This works on any curve; LongMortonIndex has a tighter one that clips to the rectangle instead of whole quads
+    ArrayList<Pair<QuadIndex, QuadIndex>> rectIntervals(int x1, int y1, int x2, int y2, int maxIntervals, double falsePositiveRatio) {
+        PriorityQueue<Quad> quads = new PriorityQueue<>(Comparator.comparingDouble((Quad q) -> q.waste).reversed());
+        //The smallest quad holding both corners holds the whole rectangle
+        int r = 64 - Long.numberOfLeadingZeros(Integer.toUnsignedLong(x1 ^ x2) | Integer.toUnsignedLong(y1 ^ y2));
+        Quad quad = new Quad(newIndex(keyAt(x1, y1), r), x1, y1, x2, y2);
+        double covered = quad.area, waste = quad.waste;
+        quads.add(quad);
+        while (quads.size() < maxIntervals && waste > falsePositiveRatio * covered) {
+            quad = quads.poll();
+            covered -= quad.area;
+            waste -= quad.waste;
+            for (long quadrant = 0; quadrant < 4; quadrant++) {
+                Quad child = new Quad(quad.quad.child(quadrant), x1, y1, x2, y2);
+                if (child.waste < child.area) {
+                    covered += child.area;
+                    waste += child.waste;
+                    quads.add(child);
+                }
+            }
+        }
+        QuadIndex[] sorted = new QuadIndex[quads.size()];
+        int i = 0;
+        for (Quad q : quads) {
+            sorted[i++] = q.quad;
+        }
+        Arrays.sort(sorted, (q1, q2) -> Long.compareUnsigned(q1.minRange(), q2.minRange()));
+        ArrayList<Pair<QuadIndex, QuadIndex>> returnList = new ArrayList<>(sorted.length);
+        for (QuadIndex q : sorted) {
+            appendInterval(returnList, q);
+        }
+        return returnList;
+    }
+
+    //A quad waiting to be split, with how many of its cells are outside the rectangle
+    private static final class Quad {
+        final QuadIndex quad;
+        final double area, waste;
+
+        Quad(QuadIndex quad, int xMin, int yMin, int xMax, int yMax) {
+            this.quad = quad;
+            Pair<Integer, Integer> corner = quad.corner();
+            long x = Integer.toUnsignedLong(corner.getL()), y = Integer.toUnsignedLong(corner.getR()), side = 1L << quad.res;
+            long width = Math.max(0, Math.min(x + side - 1, Integer.toUnsignedLong(xMax)) - Math.max(x, Integer.toUnsignedLong(xMin)) + 1);
+            long height = Math.max(0, Math.min(y + side - 1, Integer.toUnsignedLong(yMax)) - Math.max(y, Integer.toUnsignedLong(yMin)) + 1);
+            area = (double) side * side;
+            waste = area - (double) width * height;
+        }
+    }
+
+    //The smallest key at or above key whose cell is in the rectangle, or -1 (past every key, unsigned) if there is none - what rectSearch jumps to
+    //Goes down from the smallest quad holding the rectangle, in key order, skipping quads that end before key or miss the rectangle
+    long nextInRect(long key, int xMin, int yMin, int xMax, int yMax) {
+        int r = 64 - Long.numberOfLeadingZeros(Integer.toUnsignedLong(xMin ^ xMax) | Integer.toUnsignedLong(yMin ^ yMax));
+        return nextInRect(newIndex(keyAt(xMin, yMin), r), key, xMin, yMin, xMax, yMax);
+    }
+
+    private static long nextInRect(QuadIndex quad, long key, int xMin, int yMin, int xMax, int yMax) {
+        if (Long.compareUnsigned(quad.maxRange(), key) < 0) {
+            return -1L;
+        }
+        Pair<Integer, Integer> corner = quad.corner();
+        long x = Integer.toUnsignedLong(corner.getL()), y = Integer.toUnsignedLong(corner.getR()), side = 1L << quad.res;
+        if (x + side - 1 < Integer.toUnsignedLong(xMin) || x > Integer.toUnsignedLong(xMax) || y + side - 1 < Integer.toUnsignedLong(yMin) || y > Integer.toUnsignedLong(yMax)) {
+            return -1L;
+        }
+        if (x >= Integer.toUnsignedLong(xMin) && x + side - 1 <= Integer.toUnsignedLong(xMax) && y >= Integer.toUnsignedLong(yMin) && y + side - 1 <= Integer.toUnsignedLong(yMax)) {
+            return (Long.compareUnsigned(quad.minRange(), key) >= 0) ? quad.minRange() : key;
+        }
+        long next;
+        for (long quadrant = 0; quadrant < 4; quadrant++) {
+            next = nextInRect(quad.child(quadrant), key, xMin, yMin, xMax, yMax);
+            if (next != -1L) {
+                return next;
+            }
+        }
+        return -1L;
+    }
+
+    //Whether key's cell is in the rectangle, without looking at the value stored under it
+    boolean keyInRect(long key, int xMin, int yMin, int xMax, int yMax) {
+        Pair<Integer, Integer> cell = cellAt(key);
+        return Integer.compareUnsigned(cell.getL(), xMin) >= 0 && Integer.compareUnsigned(cell.getL(), xMax) <= 0
+                && Integer.compareUnsigned(cell.getR(), yMin) >= 0 && Integer.compareUnsigned(cell.getR(), yMax) <= 0;
+    }
+
+    //Splits the circle around (cx, cy) into sorted intervals, working down from the quad of resolution maxRes at the origin
+    //Quads entirely inside go to inside, and their points need no distance check; quads the edge passes through go to boundary, and theirs do
+    //Edge quads stop splitting at about a 16th of the radius - going all the way down to single cells would mean thousands of intervals along the edge of a big circle
+    void decomposeCircle(int cx, int cy, int r, int maxRes, ArrayList<Pair<QuadIndex, QuadIndex>> inside, ArrayList<Pair<QuadIndex, QuadIndex>> boundary) {
+        int boundaryRes = Math.max(0, 31 - Integer.numberOfLeadingZeros(Math.max(r, 1)) - 4);
+        decomposeCircle(cx, cy, (long) r * r, boundaryRes, newIndex(0L, maxRes), inside, boundary);
+    }
+
+    private static void decomposeCircle(int cx, int cy, long rSquared, int boundaryRes, QuadIndex quad, ArrayList<Pair<QuadIndex, QuadIndex>> inside, ArrayList<Pair<QuadIndex, QuadIndex>> boundary) {
+        if (quad.minDistance(cx, cy) > rSquared) {
+            return;
+        }
+        if (quad.maxDistance(cx, cy) <= rSquared) {
+            appendInterval(inside, quad);
+        }
+        else if (quad.res <= boundaryRes) {
+            appendInterval(boundary, quad);
+        }
+        else {
+            for (long quadrant = 0; quadrant < 4; quadrant++) {
+                decomposeCircle(cx, cy, rSquared, boundaryRes, quad.child(quadrant), inside, boundary);
+            }
+        }
+    }
+
+    //Quads come in key order, so a quad starting right where the last interval ends just extends it
+    static void appendInterval(ArrayList<Pair<QuadIndex, QuadIndex>> intervals, QuadIndex quad) {
+        if (!intervals.isEmpty() && intervals.get(intervals.size() - 1).getR().index + 1 == quad.minRange()) {
+            intervals.get(intervals.size() - 1).setR(quad.newIndex(quad.maxRange(), 0));
+        }
+        else {
+            intervals.add(new Pair<>(quad.newIndex(quad.minRange(), 0), quad.newIndex(quad.maxRange(), 0)));
+        }
+    }
+
+    //Squared distance from (x, y) to the nearest and the furthest cell of our quad
+    protected long minDistance(int x, int y) {
+        Pair<Integer, Integer> min = corner();
+        long side = 1L << res;
+        long dx = Math.max(0, Math.max(min.getL() - (long) x, x - (min.getL() + side - 1)));
+        long dy = Math.max(0, Math.max(min.getR() - (long) y, y - (min.getR() + side - 1)));
+        return dx * dx + dy * dy;
+    }
+
+    protected long maxDistance(int x, int y) {
+        Pair<Integer, Integer> min = corner();
+        long side = 1L << res;
+        long dx = Math.max(Math.abs(x - (long) min.getL()), Math.abs(x - (min.getL() + side - 1)));
+        long dy = Math.max(Math.abs(y - (long) min.getR()), Math.abs(y - (min.getR() + side - 1)));
+        return dx * dx + dy * dy;
+    }
+
+    static double unsignedToDouble(long l) {
+        return (l >= 0) ? l : (double) (l >>> 1) * 2.0 + (l & 1);
+    }
+
+    @Override
+    public String toString() {
+        Pair<Integer, Integer> cell = cellAt(index);
+        return Integer.toUnsignedString(cell.getL()) + ":" + Integer.toUnsignedString(cell.getR());
+    }
+}
@@ -1,109 +1,569 @@
 package clsqt;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
-import java.util.function.Function;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 //Hmm, we're already inherently limiting ourselves to 32 bits since Cartesian returns ints
+//Keys are 64-bit QuadIndexes, so the only ceiling left is that: 31 bits per axis, as coordinates are non-negative ints
 public class Quadtree<V extends Cartesian> {
-    Skiplist<MortonIndex, V> skiplist;
+    //Which space-filling curve orders the keys. Morton keys are cheaper to encode and decode;
+    //Hilbert keeps neighboring cells closer in the list, so a rectangle, especially one straddling the big quadrant seams, comes out as about half as many intervals
+    public enum Curve {
+        MORTON, HILBERT
+    }
+
+    Skiplist<QuadIndex, V> skiplist;
+    QuadIndex origin; //The curve's key for (0, 0) - every key we make comes from it
     int maxDim; //The largest dimension - must be a power of two and all coordinates must be less than this
     int maxRes;
+    static final int EDGE_POINTS = 8; //How many points a quad on the edge of an aggregate query can hold before we split it instead of checking them
+    static final int SEEK_STEPS = 4; //How far rectSearch walks towards its next key before searching for it instead
+    int maxIntervals = 16; //rectSearch's decomposition budget - see QuadIndex.rectIntervals. Its walk jumps over whatever the intervals let through
+    double falsePositives = 0.5;
+    ToDoubleFunction<? super V> measure; //Kept on the skiplist's towers for count and aggregate, or null
+    int bucketSize = 1; //How many values a quad holds before it splits, PR quadtree style. A single cell can't split, so it holds any number
+    int directoryLevels = 0; //How many levels of quads the skiplist's directory covers, or 0 for none - see buildDirectory
+    QueryCache<V> cache; //Recent rectSearch and kNearest results, or null - see cacheQueries
+    boolean offHeap = false; //Whether the skiplist's nodes live in slabs - see storeOffHeap
+    private final ThreadLocal<SkiplistCursor<QuadIndex, V>> cursors = new ThreadLocal<>(); //Each reading thread's place in the skiplist - see cursor
     Quadtree(int powTwo) throws Exception {
+        this(powTwo, Curve.MORTON);
+    }
+
+    Quadtree(int powTwo, Curve curve) throws Exception {
+        this(powTwo, curve, 1);
+    }
+
+    //Up to bucketSize values share a node before its quad is split, so there are about bucketSize times fewer nodes, towers and links to go through.
+    //Walks check a bucket's values one by one instead of jumping over them by key, so small buckets (4 to 16) are the sweet spot
+    Quadtree(int powTwo, Curve curve, int bucketSize) throws Exception {
         //How do we handle max size/resolution? We can simply set a maximum, truncate extra bits of resolution, or compress the range
-        if (powTwo > 0 && powTwo < 17) {
+        if (powTwo > 0 && powTwo < 32 && bucketSize > 0) {
+            this.bucketSize = bucketSize;
             maxRes = powTwo;
             maxDim = (0x00000001 << powTwo) - 1;
-            skiplist = new Skiplist<>(new MortonIndex(0, 0, 0), new MortonIndex(maxDim, maxDim, 0));
+            origin = (curve == Curve.HILBERT) ? new HilbertIndex(0L) : new LongMortonIndex(0L);
+            //The first and last keys of the map - on the Hilbert curve, the last isn't (maxDim, maxDim)
+            skiplist = new Skiplist<>(origin.newIndex(0L, 0), origin.newIndex(QuadIndex.lowBits(maxRes), 0));
         }
         else throw new Exception();
     }
 
+    //A tree that keeps aggregates of measure (count, sum, min, max) on its skiplist, so count and aggregate can take whole quads without visiting their points
+    //Every write pays a few extra steps for it. measure must not depend on anything that changes while a value is in the tree - including its position, since move
+    //can shift a point inside its quad without touching the skiplist. For counts alone, any measure will do
+    Quadtree(int powTwo, ToDoubleFunction<? super V> measure) throws Exception {
+        this(powTwo, Curve.MORTON, measure);
+    }
+
+    Quadtree(int powTwo, Curve curve, ToDoubleFunction<? super V> measure) throws Exception {
+        this(powTwo, curve, 1, measure);
+    }
+
+    Quadtree(int powTwo, Curve curve, int bucketSize, ToDoubleFunction<? super V> measure) throws Exception {
+        this(powTwo, curve, bucketSize);
+        this.measure = measure;
+        skiplist.trackAggregates(measure);
+    }
+
     public boolean add(V c) {
-        MortonIndex addIndex = new MortonIndex(c, 0);
+        return add(c, cellIndex(c.getX(), c.getY()));
+    }
+
+    //The 1x1 key of a cell on our curve
+    QuadIndex cellIndex(int x, int y) {
+        return origin.newIndex(origin.keyAt(x, y), 0);
+    }
+
+    //Adds c at addIndex rather than wherever c says it is - for callers moving c before it reports its new position
+    //Adding a value that's already in its quad replaces it; anything else sharing the quad, even the same cell, is kept alongside
+    boolean add(V c, QuadIndex addIndex) {
         int newHeight = skiplist.pickNodeHeight();
+        //A finger rather than a plain precursor array, since a split or merge goes on to search from it
+        return add(c, addIndex, newHeight, skiplist.findPrecursors(addIndex, skiplist.precursorHeight(newHeight), skiplist.newFinger()));
+    }
+
+    //add for a whole tick of points: sorted by key so every search starts from the last one's precursors (see Skiplist.findPrecursors with a finger)
+    public boolean addAll(Collection<V> values) {
+        Pair<QuadIndex, V>[] entries = sortedByIndex(values);
+        Node[] finger = skiplist.newFinger();
+        int newHeight;
+        for (Pair<QuadIndex, V> entry : entries) {
+            newHeight = skiplist.pickNodeHeight();
+            add(entry.getR(), entry.getL(), newHeight, skiplist.findPrecursors(entry.getL(), skiplist.precursorHeight(newHeight), finger));
+        }
+        return true;
+    }
+
+    //precursorNodes has to be a finger (see Skiplist.newFinger)
+    private boolean add(V c, QuadIndex addIndex, int newHeight, Node[] precursorNodes) {
+        invalidate(addIndex);
         int newRes;
-        Node<MortonIndex, Cartesian>[] precursorNodes = skiplist.findPrecursors(addIndex, newHeight);
-        Node currentNode = precursorNodes[0];
-        MortonIndex currentIndex = (MortonIndex) currentNode.getIndex();
-        Node nextNode = currentNode.getNext(0);
-        MortonIndex nextIndex = (MortonIndex) nextNode.getIndex(); //Feels like a code smell
+        long addKey = addIndex.toLong();
+        Node<QuadIndex, V> currentNode = precursorNodes[0];
+        Node<QuadIndex, V> nextNode = currentNode.getNext(0);
         //Our addition should always be in between the precursor and next; it may be filling space already occupied by either, or it might just fill empty space
         if (currentNode.containsIndex(addIndex)) {
             //Tempting to move this down, but we should retain quadtree logic here
-            if (!currentIndex.isDivisible() || currentIndex.compareTo(addIndex) == 0) {
-                //Where we're adding can't be subdivided or is exactly occupied - right now, we replace with new... Refector setValue to addValue later?
-                currentNode.setValue(c);
-                return true;
+            return addTo(currentNode, c, addIndex, newHeight, precursorNodes);
+        }
+        else if (nextNode.containsIndex(addIndex)) {
+            return addTo(nextNode, c, addIndex, newHeight, precursorNodes);
+        }
+        //Adding new node to empty space
+        //Find the largest resolution that fits between the two nodes without overlap while aligning with quad structure
+        //The head and tail answer for their ranges like any node, so the testing is delegated to the nodes
+        newRes = QuadIndex.getMaxDiffPowOfTwo(currentNode.maxRange(), nextNode.minRange());
+        while (currentNode.overlapsKey(addKey, newRes) || nextNode.overlapsKey(addKey, newRes)) {
+            newRes--;
+        }
+        skiplist.insertNode(precursorNodes, skiplist.newNode(addKey, newRes, c, newHeight));
+        //With single values the parent quad now holds at least two, so it stays split; a bucket's worth may fit in one node
+        if (bucketSize > 1) {
+            tryMerge(addKey, newRes, precursorNodes);
+        }
+        return true;
+    }
+
+    //Adding into the quad of n, which already holds something: c goes in with the rest while there's room, or n's quad is split to make some
+    private boolean addTo(Node<QuadIndex, V> n, V c, QuadIndex addIndex, int newHeight, Node[] precursorNodes) {
+        int j = indexOf(n, c);
+        if (j >= 0) {
+            if (n.isBucket()) {
+                skiplist.removeValue(precursorNodes, n, j);
+                skiplist.addValue(precursorNodes, n, addIndex.toLong(), c);
+                n.setKey(n.getKey(0));
             }
-            //We need to split the existing node to accommodate the new addition
             else {
-                newRes = currentIndex.getSplitSize(addIndex);
-                currentIndex.setRes(newRes);
-                addIndex.setRes(newRes);
+                skiplist.replaceValue(precursorNodes, n, c);
+                n.setKey(addIndex.toLong());
             }
+            return true;
         }
-        else if (nextNode.containsIndex(addIndex)) {
-            if (!nextIndex.isDivisible() || nextIndex.compareTo(addIndex) == 0) {
-                nextNode.setValue(c);
-                return true;
+        if (n.size() < bucketSize || n.getRes() == 0) {
+            if (!n.isBucket()) {
+                n.makeBucket(n.getKey());
+            }
+            skiplist.addValue(precursorNodes, n, addIndex.toLong(), c);
+            n.setKey(n.getKey(0));
+            return true;
+        }
+        split(n, c, addIndex, newHeight, precursorNodes);
+        return true;
+    }
+
+    //n is full: cut its quad, with c added, into the quads a PR quadtree would have there (see partition)
+    //n stays on as the one holding its first value, and only what's left over becomes new nodes
+    private void split(Node<QuadIndex, V> n, V c, QuadIndex addIndex, int newHeight, Node[] precursorNodes) {
+        int size = n.size() + 1, added = 0;
+        long[] keys = new long[size];
+        Object[] values = new Object[size];
+        long firstKey = n.isBucket() ? n.getKey(0) : n.getKey();
+        for (int j = 0, k = 0; j < size; j++) {
+            if (added == 0 && (k == size - 1 || Long.compareUnsigned(addIndex.toLong(), n.isBucket() ? n.getKey(k) : firstKey) < 0)) {
+                keys[j] = addIndex.toLong();
+                values[j] = c;
+                added = 1;
             }
             else {
-                newRes = nextIndex.getSplitSize(addIndex);
-                nextIndex.setRes(newRes);
-                addIndex.setRes(newRes);
+                keys[j] = n.isBucket() ? n.getKey(k) : firstKey;
+                values[j] = n.getValue(k++);
             }
         }
-        //Adding new node to empty space
-        else {
-            //Find the largest resolution that fits between the two nodes without overlap while aligning with quad structure
-            //We should delegate testing to the nodes, or else we need a real index for the head/tail
-            newRes = MortonIndex.getMaxDiffPowOfTwo(currentIndex.maxRange(), nextIndex.minRange());
-            addIndex.setRes(newRes);
-            while (currentNode.overlapsIndex(addIndex) || nextNode.overlapsIndex(addIndex)) {
-                addIndex.setRes(--newRes);
+        ArrayList<int[]> leaves = new ArrayList<>();
+        partition(keys, 0, size, n.getRes(), leaves);
+        int[] kept = null;
+        for (int[] leaf : leaves) {
+            if (Long.compareUnsigned(keys[leaf[1]], firstKey) <= 0 && Long.compareUnsigned(keys[leaf[2] - 1], firstKey) >= 0) {
+                kept = leaf;
+            }
+        }
+        //n gives up the values outside its new quad, last first so the positions don't shift, and takes c if it's inside
+        boolean keepsC = Long.compareUnsigned(keys[kept[1]], addIndex.toLong()) <= 0 && Long.compareUnsigned(keys[kept[2] - 1], addIndex.toLong()) >= 0;
+        if (n.isBucket()) {
+            for (int j = n.size() - 1; j >= 0; j--) {
+                if (Long.compareUnsigned(n.getKey(j), keys[kept[2] - 1]) > 0) {
+                    skiplist.removeValue(precursorNodes, n, j);
+                }
+            }
+        }
+        if (keepsC) {
+            if (!n.isBucket()) {
+                n.makeBucket(firstKey);
+            }
+            skiplist.addValue(precursorNodes, n, addIndex.toLong(), c);
+        }
+        n.setRes(kept[0]);
+        n.setKey(keys[kept[1]]);
+        //The usual case with single values: c alone in a quad next to n's, where the precursors we have still fit
+        int[] other = (leaves.get(0) == kept) ? leaves.get(leaves.size() - 1) : leaves.get(0);
+        if (leaves.size() == 2 && !keepsC && other[2] - other[1] == 1) {
+            skiplist.insertNode(precursorNodes, skiplist.newNode(addIndex.toLong(), other[0], c, newHeight));
+            return;
+        }
+        int h;
+        Node<QuadIndex, V> leafNode;
+        for (int[] leaf : leaves) {
+            if (leaf != kept) {
+                h = skiplist.pickNodeHeight();
+                leafNode = leafNode(skiplist.slabs, keys, values, leaf, h);
+                skiplist.insertNode(skiplist.findPrecursors(leafNode.getKey(), leafNode.getRes(), skiplist.precursorHeight(h), precursorNodes), leafNode);
+            }
+        }
+    }
+
+    //Cuts a quad of resolution res, holding the sorted keys[from, to), into the leaves of a PR quadtree: split while it holds more than bucketSize, down to single cells
+    //The whole map is always split, the way add never makes a node of all of it. Each leaf goes into leaves as {res, from, to}
+    private void partition(long[] keys, int from, int to, int res, ArrayList<int[]> leaves) {
+        if (res == 0 || (to - from <= bucketSize && res < maxRes)) {
+            leaves.add(new int[] {res, from, to});
+            return;
+        }
+        long childMask = ~QuadIndex.lowBits(res - 1);
+        int start = from, end;
+        while (start < to) {
+            end = start + 1;
+            while (end < to && (keys[end] & childMask) == (keys[start] & childMask)) {
+                end++;
             }
+            partition(keys, start, end, res - 1, leaves);
+            start = end;
         }
-        return skiplist.insertNode(precursorNodes, new QTNode<MortonIndex, V>(addIndex, c, newHeight));
+    }
+
+    //A node for one leaf of partition: a single value, or a bucket of them. In slabs, if the skiplist it's for has any
+    private Node<QuadIndex, V> leafNode(SlabStore<QuadIndex, V> slabs, long[] keys, Object[] values, int[] leaf, int h) {
+        if (leaf[2] - leaf[1] == 1) {
+            return Skiplist.newNode(slabs, keys[leaf[1]], leaf[0], (V) values[leaf[1]], h);
+        }
+        return Skiplist.newBucket(slabs, keys[leaf[1]], leaf[0], Arrays.copyOfRange(keys, leaf[1], leaf[2]), Arrays.copyOfRange(values, leaf[1], leaf[2]), leaf[2] - leaf[1], h);
+    }
+
+    //Where c is among n's values, or -1
+    private int indexOf(Node<QuadIndex, V> n, V c) {
+        for (int j = 0; j < n.size(); j++) {
+            if (c.equals(n.getValue(j))) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    //Builds the tree in one go instead of add-ing point by point: sort by key, cut the map into the same quads add would end up with (see partition), then link the skiplist bottom-up
+    //Anything already in the tree is kept. A value given twice in the same cell is kept once, same as add
+    public void bulkLoad(Collection<V> values) {
+        ArrayList<V> all = rectSearch(0, 0, maxDim, maxDim);
+        all.addAll(values);
+        Pair<QuadIndex, V>[] entries = sortedByIndex(all);
+        long[] keys = new long[entries.length];
+        Object[] sortedValues = new Object[entries.length];
+        int size = 0;
+        boolean repeated;
+        for (int i = 0; i < entries.length; i++) {
+            repeated = false;
+            for (int j = i + 1; j < entries.length && entries[j].getL().compareTo(entries[i].getL()) == 0 && !repeated; j++) {
+                repeated = entries[j].getR().equals(entries[i].getR());
+            }
+            if (!repeated) {
+                keys[size] = entries[i].getL().toLong();
+                sortedValues[size++] = entries[i].getR();
+            }
+        }
+        ArrayList<int[]> leaves = new ArrayList<>();
+        partition(keys, 0, size, maxRes, leaves);
+        SlabStore<QuadIndex, V> slabs = offHeap ? new SlabStore<>() : null;
+        skiplist = new Skiplist<>(origin.newIndex(0L, 0), origin.newIndex(QuadIndex.lowBits(maxRes), 0), slabs, leaves.size(), (i, h) -> leafNode(slabs, keys, sortedValues, leaves.get(i), h));
+        if (measure != null) {
+            skiplist.trackAggregates(measure);
+        }
+        skiplist.buildDirectory(2 * directoryLevels);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    //Gives the skiplist a directory over the quads levels down from the whole map - 4^levels of them, keyed by the top 2 * levels bits of the key - so a search
+    //that can't start from a finger (a lone add, remove or get, a query's first seek) comes down from its quad's entry instead of from the top (see Skiplist.buildDirectory)
+    //Sized for the tree as it is, so it's worth building again after the tree has grown severalfold. 0 turns it off
+    public void buildDirectory(int levels) {
+        directoryLevels = Math.max(0, Math.min(levels, maxRes));
+        skiplist.buildDirectory(2 * directoryLevels);
+    }
+
+    //An immutable copy for when the points are done changing - packed keys and no skiplist (see FrozenQuadtree). The values themselves are shared, and mustn't move
+    public FrozenQuadtree<V> freeze() {
+        return new FrozenQuadtree<>(this);
+    }
+
+    //Moves the nodes out of the Java heap and into slabs of direct buffers, or back: keys, resolutions, heights and links go off-heap, and only the values
+    //(in a parallel Object[]), buckets, aggregates and one small handle per node stay on it (see SlabStore). For trees of tens of millions of points, where the
+    //node objects are most of the heap and of what the collector has to trace. Removed nodes' slots are reused before the slabs grow. Reads are a little slower,
+    //since every field is a buffer read. The slabs are direct memory, so -XX:MaxDirectMemorySize has to leave room for them (see offHeapBytes)
+    //Rebuilds the skiplist with the nodes' heights kept, so it's done once, up front; bulkLoad and relink keep to the choice
+    public void storeOffHeap(boolean offHeap) {
+        if (offHeap == this.offHeap) {
+            return;
+        }
+        this.offHeap = offHeap;
+        Node<QuadIndex, V> first = skiplist.firstNodeFrom(origin.newIndex(0L, 0));
+        relink(new Iterator<Node<QuadIndex, V>>() {
+            private Node<QuadIndex, V> n = first;
+
+            @Override
+            public boolean hasNext() {
+                return n.hasNext(0);
+            }
+
+            @Override
+            public Node<QuadIndex, V> next() {
+                Node<QuadIndex, V> current = n;
+                n = n.getNext(0);
+                return current;
+            }
+        });
+    }
+
+    //How much direct memory the slabs have taken, used or free - 0 unless storeOffHeap
+    public long offHeapBytes() {
+        return (skiplist.slabs == null) ? 0 : skiplist.slabs.offHeapBytes();
+    }
+
+    //Swaps in nodes that are already in key order and already have their heights - a snapshot's (see Snapshot)
+    void relink(Iterator<? extends Node<QuadIndex, V>> sortedNodes) {
+        skiplist = new Skiplist<>(origin.newIndex(0L, 0), origin.newIndex(QuadIndex.lowBits(maxRes), 0), offHeap ? new SlabStore<>() : null, sortedNodes);
+        if (measure != null) {
+            skiplist.trackAggregates(measure);
+        }
+        skiplist.buildDirectory(2 * directoryLevels);
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    //Pairs every value with its 1x1 index, in key order
+    //parallelSort is stable, so among equal keys the one that came last stays last
+    private Pair<QuadIndex, V>[] sortedByIndex(Collection<V> values) {
+        Pair<QuadIndex, V>[] entries = new Pair[values.size()];
+        int i = 0;
+        for (V c : values) {
+            entries[i++] = new Pair<>(cellIndex(c.getX(), c.getY()), c);
+        }
+        Arrays.parallelSort(entries, (e1, e2) -> e1.getL().compareTo(e2.getL()));
+        return entries;
     }
 
     //If we remove a node, we want to check for nodes in the same quad and upsize them if there's only one left... meaning we need to find what quad/resolution our Cartesian belongs in first
     //This means we need to look both directions, unless we're at the start or end
     //Needs to be synchronized with skiplist - avoid repeating action, actually checking contents
+    //Takes out c itself if it's in the tree, or else whatever else is in c's cell
     public boolean remove(V c) {
-        MortonIndex cartesianIndex = new MortonIndex(c, 0);
-        Node<MortonIndex, Cartesian>[] precursorNodes = skiplist.findPrecursors(cartesianIndex, 0);
-        Node<MortonIndex, Cartesian> removeNode = precursorNodes[0].getNext();
-        MortonIndex removeIndex = (MortonIndex) removeNode.getIndex();
-        if (removeNode.containsIndex(cartesianIndex)) {
-            skiplist.remove(removeIndex);
-            tryExpand(removeIndex);
+        //Even for one point, the unlink and every tryMerge step start from the search before them
+        return remove(c, cellIndex(c.getX(), c.getY()), skiplist.newFinger());
+    }
+
+    //Returns how many of the values had a node to remove
+    public int removeAll(Collection<V> values) {
+        Pair<QuadIndex, V>[] entries = sortedByIndex(values);
+        Node[] finger = skiplist.newFinger();
+        int removed = 0;
+        for (Pair<QuadIndex, V> entry : entries) {
+            if (remove(entry.getR(), entry.getL(), finger)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private boolean remove(V c, QuadIndex cartesianIndex, Node[] finger) {
+        Node<QuadIndex, V> removeNode = nodeAt(cartesianIndex.toLong(), finger);
+        if (!removeNode.containsIndex(cartesianIndex)) {
+            return false;
+        }
+        int j = indexOf(removeNode, c);
+        for (int k = 0; k < removeNode.size() && j < 0; k++) {
+            if ((removeNode.isBucket() ? removeNode.getKey(k) : removeNode.getKey()) == cartesianIndex.toLong()) {
+                j = k;
+            }
+        }
+        if (j < 0) {
+            return false;
+        }
+        invalidate(cartesianIndex);
+        removeValue(removeNode, j, finger);
+        return true;
+    }
+
+    //Drops whatever cached results a point going in or out at cell could change
+    private void invalidate(QuadIndex cell) {
+        if (cache != null) {
+            Pair<Integer, Integer> corner = cell.corner();
+            cache.invalidate(cell.toLong(), corner.getL(), corner.getR());
+        }
+    }
+
+    //Keeps the results of recent rectSearch (without a filter) and kNearest calls, up to maxValues values in all, least recently used out first (see QueryCache)
+    //For callers that ask for the same windows over and over between writes; each write only drops the results around it. Hits are copies, so callers still own their lists
+    //Reads go on being safe together, but no more than before alongside a write. 0 turns it off
+    public void cacheQueries(long maxValues) {
+        cache = (maxValues > 0) ? new QueryCache<>(origin, maxRes, maxValues) : null;
+    }
+
+    //The share of cached queries answered from the cache so far
+    public double cacheHitRate() {
+        return (cache == null) ? 0 : cache.hitRate();
+    }
+
+    //The node whose quad holds the cell at key, if any - otherwise the first one after it. Like Skiplist.firstNodeFrom, with a finger
+    private Node<QuadIndex, V> nodeAt(long key, Node[] finger) {
+        return skiplist.firstNodeFrom(key, 0, finger);
+    }
+
+    //This thread's cursor, so a query's first search starts from where its last query left off - the next viewport over, the next step of a sweep -
+    //rather than from the top. A new one whenever bulkLoad or relink has swapped the skiplist out
+    private SkiplistCursor<QuadIndex, V> cursor() {
+        SkiplistCursor<QuadIndex, V> cursor = cursors.get();
+        if (cursor == null || cursor.getSkiplist() != skiplist) {
+            cursor = skiplist.newCursor();
+            cursors.set(cursor);
+        }
+        return cursor;
+    }
+
+    //Takes the jth value out of n, unlinking n if it was the last, then merges what's left around it as far as it will go
+    private void removeValue(Node<QuadIndex, V> n, int j, Node[] finger) {
+        //Kept aside, since an unlinked node may be handed back to its slabs (see SlabStore)
+        long key = n.getKey();
+        int res = n.getRes();
+        if (n.size() > 1) {
+            skiplist.removeValue(skiplist.findPrecursors(key, res, skiplist.precursorHeight(0), finger), n, j);
+            n.setKey(n.getKey(0));
+            key = n.getKey();
+        }
+        else {
+            skiplist.remove(key, res, finger);
+        }
+        tryMerge(key, res, finger);
+    }
+
+    //Moves value, which must still report its old position, to newX/newY; the caller updates the value's own coordinates afterwards
+    //Returns false if value isn't in the tree. Like add, landing on an occupied cell keeps both
+    public boolean move(V value, int newX, int newY) {
+        QuadIndex newIndex = cellIndex(newX, newY);
+        Node[] finger = skiplist.newFinger();
+        Node<QuadIndex, V> moveNode = nodeOf(value, finger);
+        if (moveNode == null) {
+            return false;
+        }
+        invalidate(cellIndex(value.getX(), value.getY()));
+        invalidate(newIndex);
+        //Still inside our own quad: it holds as many points as before and the points around it haven't changed, so it's still as large as it can be. Only the key moves
+        if (moveNode.containsIndex(newIndex)) {
+            if (moveNode.isBucket()) {
+                //Same value, so the aggregates don't change either
+                moveNode.removeValue(indexOf(moveNode, value));
+                moveNode.addValue(newIndex.toLong(), value);
+                moveNode.setKey(moveNode.getKey(0));
+            }
+            else {
+                moveNode.setKey(newIndex.toLong());
+            }
             return true;
         }
-        return false;
+        //Otherwise take it out, merge what we left behind and put it back in - every search starts from the finger, so a short move only climbs a few levels
+        removeValue(moveNode, indexOf(moveNode, value), finger);
+        int newHeight = skiplist.pickNodeHeight();
+        return add(value, newIndex, newHeight, skiplist.findPrecursors(newIndex, skiplist.precursorHeight(newHeight), finger));
+    }
+
+    //The node holding value itself, found from where value says it is, or null if value isn't in the tree
+    Node<QuadIndex, V> nodeOf(V value, Node[] finger) {
+        long key = origin.keyAt(value.getX(), value.getY());
+        return holding(nodeAt(key, finger), key, value);
+    }
+
+    //The same for reads, which have no finger to keep: a search by the bare key that stops at the first node holding value's cell and allocates nothing
+    //(see Skiplist.search)
+    Node<QuadIndex, V> nodeOf(V value) {
+        long key = origin.keyAt(value.getX(), value.getY());
+        return holding(skiplist.search(key, 0), key, value);
+    }
+
+    public boolean contains(V value) {
+        return nodeOf(value) != null;
+    }
+
+    //n, the node found for value's key, if value is in it
+    private Node<QuadIndex, V> holding(Node<QuadIndex, V> n, long key, V value) {
+        if (n.isBucket()) {
+            return (n.containsKey(key, 0) && indexOf(n, value) >= 0) ? n : null;
+        }
+        return (n.compareTo(key) == 0 && value.equals(n.getValue())) ? n : null;
     }
 
-    //Checks for coquads specified by i; if there's only one node left, expand it to fill the space, then repeat
+    //Checks the parent quad of i: if all it holds fits in one node, that's what it becomes, and we repeat a level up
+    //With single values that's expanding the only node left; with buckets, the nodes in there are merged into the first
     //Doing this recursively instead of the procedure to size a new quad for empty space because we don't know if there's anything to expand or the neighbors
-    private void tryExpand(MortonIndex i) {
-        MortonIndex parentQuadIndex = new MortonIndex(i.getParentStartLoc(), i.getRes() + 1 > maxRes? maxRes : i.getRes() + 1);
-        Node<MortonIndex, Cartesian> current = skiplist.findPrecursors(parentQuadIndex, 0)[0];
-        int quadCount = 0;
-        //Very hacky, we should just stop treating it as an actual node with an index...
-        while (current.hasNext(0) && /* parentQuadIndex.contains(current.getNext().getIndex()) */ current.getNext().compareTo(new MortonIndex(parentQuadIndex.maxRange(), 0)) <= 0) {
-            current = current.getNext();
-            quadCount++;
+    //The quad is the one of resolution res at key
+    private void tryMerge(long key, int res, Node[] finger) {
+        int parentRes = res + 1;
+        //The whole map stays split, same as partition and add have it
+        if (parentRes >= maxRes) {
+            return;
+        }
+        long parentMax = key | QuadIndex.lowBits(parentRes);
+        //Search for the 1x1 cell at the quad start - a quad-sized key can compare equal to a node it doesn't contain and never get a precursor recorded
+        Node<QuadIndex, V> first = skiplist.findPrecursors(key & ~QuadIndex.lowBits(parentRes), 0, 0, finger)[0].getNext(0), current = first;
+        int nodes = 0, values = 0;
+        while (current.hasNext(0) && Long.compareUnsigned(current.getKey(), parentMax) <= 0) {
+            nodes++;
+            values += current.size();
+            if (values > bucketSize) {
+                return;
+            }
+            current = current.getNext(0);
+        }
+        if (nodes == 0) {
+            return;
         }
-        //If we have only one node left within the quad, expand unless it would go out of bounds
-        if (quadCount == 1 && current.getIndex().getRes() + 1 <= maxRes) {
-            current.getIndex().expand();
-            tryExpand(current.getIndex());
+        if (nodes > 1) {
+            ArrayList<Pair<Long, V>> merged = new ArrayList<>();
+            Node<QuadIndex, V> next;
+            for (Node<QuadIndex, V> n = first.getNext(0); n != current; n = next) {
+                next = n.getNext(0);
+                for (int j = 0; j < n.size(); j++) {
+                    merged.add(new Pair<>(n.isBucket() ? n.getKey(j) : n.getKey(), n.getValue(j)));
+                }
+                skiplist.remove(n.getKey(), n.getRes(), finger);
+            }
+            if (!first.isBucket()) {
+                first.makeBucket(first.getKey());
+            }
+            skiplist.findPrecursors(first.getKey(), first.getRes(), skiplist.precursorHeight(0), finger);
+            for (Pair<Long, V> entry : merged) {
+                skiplist.addValue(finger, first, entry.getL(), entry.getR());
+            }
         }
+        first.setRes(parentRes);
+        tryMerge(first.getKey(), parentRes, finger);
     }
 
     public ArrayList<V> rectSearch(int x1, int y1, int x2, int y2) {
+        if (cache != null) {
+            return cache.rect(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), () -> rectSearch(x1, y1, x2, y2, c -> true));
+        }
         return rectSearch(x1, y1, x2, y2, c -> true);
     }
 
@@ -113,137 +573,427 @@ public class Quadtree<V extends Cartesian> {
         xMax = Math.max(x1, x2);
         yMin = Math.min(y1, y2);
         yMax = Math.max(y1, y2);
-        ArrayList<V> resultList = skiplist.intervalsGet(MortonIndex.decompose(xMin, yMin, xMax, yMax));
-        resultList.removeIf(c -> !(c.getX() >= xMin && c.getX() <= xMax && c.getY() >= yMin && c.getY() <= yMax) || filter.test(c) == false);
+        ArrayList<V> resultList = new ArrayList<>();
+        visitBox(xMin, yMin, xMax, yMax, c -> !filter.test(c) || resultList.add(c));
         return resultList;
     }
 
-    public Optional<V> nearestNeighbor(Node<MortonIndex, V> n) {
-        ArrayList<Pair<MortonIndex, MortonIndex>> nearestIntervals = new ArrayList<Pair<MortonIndex, MortonIndex>>();
-        boolean hasXNeighbor = true, hasYNeighbor = true;
-        Function<MortonIndex, MortonIndex> xPlusGetter, yPlusGetter, xMinusGetter, yMinusGetter;
-        MortonIndex nodeIndex = n.getIndex();
-        int quadrant = nodeIndex.getQuadrant();
-        Pair<Integer, Integer> minXY =  MortonIndex.decode(nodeIndex.minRange());
-        Pair<Integer, Integer> maxXY = MortonIndex.decode(nodeIndex.maxRange());
-        MortonIndex neighborX, neighborY, neighborXY, neighborXminusY, neighborYminusX;
+    //rectSearch without the list: each match goes straight to action, in key order
+    //Not an overload of rectSearch, since a lambda like c -> list.add(c) would fit both it and the Predicate one
+    public void forEachInRect(int x1, int y1, int x2, int y2, Consumer<? super V> action) {
+        visitRect(x1, y1, x2, y2, c -> true, c -> {
+            action.accept(c);
+            return true;
+        });
+    }
 
-        if (nodeIndex.getRes() < maxRes) {
-            //This covers the three other potential co-quads... I think this is faster than checking for the actual nodes
-            nearestIntervals.add(new Pair<>(new MortonIndex(nodeIndex.minRange(nodeIndex.getRes() + 1)), new MortonIndex(nodeIndex.maxRange(nodeIndex.getRes() + 1))));
-            //We only need to check two directions for any quadrant, because its existence implies at least two directions in which there is space
-            if (minXY.getL() == 0) {
-                hasXNeighbor = false;
-            }
-            else if (maxXY.getL() == maxDim) {
-                hasXNeighbor = false;
-            }
-            if (minXY.getR() == 0) {
-                hasYNeighbor = false;
-            }
-            else if (maxXY.getR() == maxDim) {
-                hasYNeighbor = false;
-            }
-            if (quadrant == 0 || quadrant == 2) {
-                //So much boilerplate...
-                xPlusGetter = new Function<MortonIndex, MortonIndex>() {
-                    @Override
-                    public MortonIndex apply(MortonIndex i) {
-                        return MortonIndex.getWest(i);
+    //Hands each match to visitor until it returns false, then stops walking - so "the first n" or "until we find one" only costs as much as it finds
+    //Returns whether it got through the whole rectangle
+    public boolean visitRect(int x1, int y1, int x2, int y2, Predicate<Cartesian> filter, Predicate<? super V> visitor) {
+        int xMin, xMax, yMin, yMax;
+        xMin = Math.min(x1, x2);
+        xMax = Math.max(x1, x2);
+        yMin = Math.min(y1, y2);
+        yMax = Math.max(y1, y2);
+        return visitBox(xMin, yMin, xMax, yMax, c -> !filter.test(c) || visitor.test(c));
+    }
+
+    //Sets how many intervals rectSearch and visitRect may cut a rectangle into, and what share of the keys they cover may be outside it
+    public void setDecomposition(int maxIntervals, double falsePositives) {
+        this.maxIntervals = Math.max(1, maxIntervals);
+        this.falsePositives = falsePositives;
+    }
+
+    //The walk behind rectSearch and visitRect: a coarse decomposition, and whenever we land on a key outside the rectangle, a jump straight to the next key inside it
+    //(QuadIndex.nextInRect) instead of walking through everything in between. Whether a key is inside is read off the key, so jumped-over points are never touched
+    //Hands every point inside to visitor, which returns false to stop
+    private boolean visitBox(int xMin, int yMin, int xMax, int yMax, Predicate<? super V> visitor) {
+        long key, next;
+        Node[] finger = cursor().finger();
+        Node<QuadIndex, V> current = null;
+        V c;
+        for (Pair<QuadIndex, QuadIndex> interval : origin.rectIntervals(xMin, yMin, xMax, yMax, maxIntervals, falsePositives)) {
+            current = seek(current, interval.getL().toLong(), finger);
+            while (current.compareTo(interval.getR()) <= 0) {
+                //A bucket's values have keys of their own and can't be jumped over by the node's, but there are only a few: check them all and step on
+                if (current.isBucket()) {
+                    for (int j = 0; j < current.size(); j++) {
+                        c = current.getValue(j);
+                        if (inRect(c, xMin, yMin, xMax, yMax) && !visitor.test(c)) {
+                            return false;
+                        }
                     }
-                };
-                xMinusGetter = new Function<MortonIndex, MortonIndex>() {
-                    @Override
-                    public MortonIndex apply(MortonIndex i) {
-                        return MortonIndex.getEast(i);
+                    current = current.getNext(0);
+                    continue;
+                }
+                key = current.getKey();
+                if (origin.keyInRect(key, xMin, yMin, xMax, yMax)) {
+                    c = current.getValue();
+                    if (inRect(c, xMin, yMin, xMax, yMax) && !visitor.test(c)) {
+                        return false;
                     }
-                };
+                    current = current.getNext(0);
+                    continue;
+                }
+                next = origin.nextInRect(key, xMin, yMin, xMax, yMax);
+                if (Long.compareUnsigned(next, interval.getR().toLong()) > 0) {
+                    break;
+                }
+                current = seek(current.getNext(0), next, finger);
             }
-            else {
-                xPlusGetter = new Function<MortonIndex, MortonIndex>() {
-                    @Override
-                    public MortonIndex apply(MortonIndex i) {
-                        return MortonIndex.getEast(i);
-                    }
-                };
-                xMinusGetter = new Function<MortonIndex, MortonIndex>() {
-                    @Override
-                    public MortonIndex apply(MortonIndex i) {
-                        return MortonIndex.getWest(i);
-                    }
-                };
+        }
+        return true;
+    }
+
+    //The first node that may hold a key at or after key - a bucket whose quad reaches it, or any node from it on: walked to from current if it's only a few steps away,
+    //searched for from the finger otherwise. Never one before current, so a bucket we've been through isn't gone through again. Takes the bare key, so the walk
+    //allocates nothing between intervals
+    private Node<QuadIndex, V> seek(Node<QuadIndex, V> current, long key, Node[] finger) {
+        for (int step = 0; current != null && step <= SEEK_STEPS; step++) {
+            if (current.compareTo(key) >= 0 || (current.isBucket() && current.containsKey(key, 0))) {
+                return current;
             }
-            if (quadrant == 0 || quadrant == 1) {
-                yPlusGetter = new Function<MortonIndex, MortonIndex>() {
-                    @Override
-                    public MortonIndex apply(MortonIndex i) {
-                        return MortonIndex.getNorth(i);
-                    }
-                };
-                yMinusGetter = new Function<MortonIndex, MortonIndex>() {
-                    @Override
-                    public MortonIndex apply(MortonIndex i) {
-                        return MortonIndex.getSouth(i);
-                    }
-                };
+            current = current.getNext(0);
+        }
+        Node<QuadIndex, V> precursor = skiplist.findPrecursors(key, 0, 0, finger)[0];
+        return (precursor.isBucket() && precursor.containsKey(key, 0)) ? precursor : precursor.getNext(0);
+    }
+
+    //rectSearch for many rectangles. They're searched in key order of the first key each one holds, so every walk starts from the finger the one before left
+    //(see cursor): neighboring and overlapping rectangles share the descent and come down on nodes that are still in cache, and the same rectangle twice is
+    //searched once. Results come back in the rectangles' order, each in key order, the same as rectSearch would have them. Doesn't go through the query cache
+    //Merging every rectangle's intervals into one walk does less seeking, but the bookkeeping for which rectangles are over each key costs more than it saves
+    public ArrayList<ArrayList<V>> rectSearchBatch(List<Rect> rects) {
+        Integer[] order = new Integer[rects.size()];
+        long[] keys = new long[rects.size()];
+        Rect rect;
+        for (int q = 0; q < order.length; q++) {
+            rect = rects.get(q);
+            order[q] = q;
+            keys[q] = origin.nextInRect(0L, rect.getXMin(), rect.getYMin(), rect.getXMax(), rect.getYMax());
+        }
+        //Equal rectangles end up next to each other
+        Arrays.sort(order, (a, b) -> {
+            int byKey = Long.compareUnsigned(keys[a], keys[b]);
+            if (byKey != 0) {
+                return byKey;
             }
-            else {
-                yPlusGetter = new Function<MortonIndex, MortonIndex>() {
-                    @Override
-                    public MortonIndex apply(MortonIndex i) {
-                        return MortonIndex.getSouth(i);
-                    }
-                };
-                yMinusGetter = new Function<MortonIndex, MortonIndex>() {
-                    @Override
-                    public MortonIndex apply(MortonIndex i) {
-                        return MortonIndex.getNorth(i);
-                    }
-                };
+            Rect ra = rects.get(a), rb = rects.get(b);
+            if (ra.getXMin() != rb.getXMin()) {
+                return Integer.compare(ra.getXMin(), rb.getXMin());
+            }
+            if (ra.getYMin() != rb.getYMin()) {
+                return Integer.compare(ra.getYMin(), rb.getYMin());
+            }
+            return (ra.getXMax() != rb.getXMax()) ? Integer.compare(ra.getXMax(), rb.getXMax()) : Integer.compare(ra.getYMax(), rb.getYMax());
+        });
+        ArrayList<ArrayList<V>> results = new ArrayList<>(order.length);
+        for (int q = 0; q < order.length; q++) {
+            results.add(null);
+        }
+        Rect previous = null;
+        ArrayList<V> result = null;
+        for (int q : order) {
+            rect = rects.get(q);
+            if (previous != null && rect.getXMin() == previous.getXMin() && rect.getYMin() == previous.getYMin() && rect.getXMax() == previous.getXMax()
+                    && rect.getYMax() == previous.getYMax()) {
+                results.set(q, new ArrayList<>(result));
+                continue;
+            }
+            result = new ArrayList<>();
+            visitBox(rect.getXMin(), rect.getYMin(), rect.getXMax(), rect.getYMax(), result::add);
+            results.set(q, result);
+            previous = rect;
+        }
+        return results;
+    }
+
+    //kNearest for many centers. There's no interval set to merge here, since how far each search goes depends on what it finds; instead the searches run in key
+    //order of their centers, each starting from the finger the one before left (see cursor), so neighboring centers share the descent and the nodes around them
+    //Results come back in the centers' order
+    public ArrayList<ArrayList<V>> kNearestBatch(List<? extends Cartesian> centers, int k) {
+        Integer[] order = new Integer[centers.size()];
+        long[] keys = new long[centers.size()];
+        for (int q = 0; q < order.length; q++) {
+            order[q] = q;
+            keys[q] = origin.keyAt(centers.get(q).getX(), centers.get(q).getY());
+        }
+        Arrays.sort(order, (a, b) -> Long.compareUnsigned(keys[a], keys[b]));
+        ArrayList<ArrayList<V>> results = new ArrayList<>(order.length);
+        for (int q = 0; q < order.length; q++) {
+            results.add(null);
+        }
+        for (int q : order) {
+            results.set(q, kNearest(centers.get(q).getX(), centers.get(q).getY(), k));
+        }
+        return results;
+    }
+
+    public boolean anyInRect(int x1, int y1, int x2, int y2) {
+        return !visitRect(x1, y1, x2, y2, c -> true, c -> false);
+    }
+
+    //Lazy rectSearch: the list walk only goes as far as the stream pulls it, so limit or findFirst stop it early
+    //Only the decomposition is done up front; the tree must not change while the stream is open
+    public Stream<V> rectStream(int x1, int y1, int x2, int y2) {
+        return rectStream(x1, y1, x2, y2, c -> true);
+    }
+
+    public Stream<V> rectStream(int x1, int y1, int x2, int y2, Predicate<Cartesian> filter) {
+        int xMin, xMax, yMin, yMax;
+        xMin = Math.min(x1, x2);
+        xMax = Math.max(x1, x2);
+        yMin = Math.min(y1, y2);
+        yMax = Math.max(y1, y2);
+        return StreamSupport.stream(skiplist.intervalsSpliterator(origin.rectIntervals(xMin, yMin, xMax, yMax)), false)
+                .filter(c -> inRect(c, xMin, yMin, xMax, yMax) && filter.test(c));
+    }
+
+    private static boolean inRect(Cartesian c, int xMin, int yMin, int xMax, int yMax) {
+        return c.getX() >= xMin && c.getX() <= xMax && c.getY() >= yMin && c.getY() <= yMax;
+    }
+
+    //Opt-in parallel rectSearch: the decomposed intervals are split into runs and scanned on the common ForkJoinPool, results still in key order
+    //Only pays off for big windows, which decompose into hundreds of intervals and return a lot of points; small ones are faster with rectSearch
+    public ArrayList<V> parallelRectSearch(int x1, int y1, int x2, int y2) {
+        return parallelRectSearch(x1, y1, x2, y2, c -> true, ForkJoinPool.commonPool());
+    }
+
+    public ArrayList<V> parallelRectSearch(int x1, int y1, int x2, int y2, Predicate<Cartesian> filter, Executor executor) {
+        int xMin, xMax, yMin, yMax;
+        xMin = Math.min(x1, x2);
+        xMax = Math.max(x1, x2);
+        yMin = Math.min(y1, y2);
+        yMax = Math.max(y1, y2);
+        return skiplist.intervalsGet(origin.rectIntervals(xMin, yMin, xMax, yMax), c -> inRect(c, xMin, yMin, xMax, yMax) && filter.test(c), executor);
+    }
+
+    //The k values closest to (x, y), closest first - exact, unlike nearestNeighbor, and (x, y) doesn't have to be a point in the tree (if it is, it comes back first)
+    //Best-first over quads: starting from the whole map, always open the quad nearest (x, y) next, and stop once the nearest unopened quad is further than our kth best
+    //Maximal quads do most of the pruning: a quad covered by one node, or holding only one node, is settled without splitting it any further
+    public ArrayList<V> kNearest(int x, int y, int k) {
+        return (cache == null) ? nearest(x, y, k) : cache.nearest(x, y, k, () -> nearest(x, y, k));
+    }
+
+    private ArrayList<V> nearest(int x, int y, int k) {
+        PriorityQueue<Pair<Long, QuadIndex>> quads = new PriorityQueue<>(Comparator.comparing(Pair::getL));
+        PriorityQueue<Pair<Long, V>> nearest = new PriorityQueue<>(Comparator.comparing((Pair<Long, V> p) -> p.getL()).reversed()); //Bounded to k, furthest on top
+        Node[] finger = cursor().finger();
+        QuadIndex quad;
+        Node<QuadIndex, V> n, after;
+        long quadMax;
+        int res;
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        quads.add(new Pair<>(0L, origin.newIndex(0L, maxRes)));
+        while (!quads.isEmpty()) {
+            if (nearest.size() == k && quads.peek().getL() > nearest.peek().getL()) {
+                break;
+            }
+            quad = quads.poll().getR();
+            res = quad.getRes();
+            quadMax = quad.maxRange();
+            //The first node reaching into the quad - see Skiplist.firstNodeFrom, done here with the finger since we keep opening quads near each other
+            n = skiplist.firstNodeFrom(quad.minRange(), 0, finger);
+            //Tail, or a node past the quad: nothing in here
+            if (!n.hasNext(0) || Long.compareUnsigned(n.minRange(), quadMax) > 0) {
+                continue;
+            }
+            //Quads never partially overlap, so a node reaching into ours at least as large covers it - its points are the only ones the quad can have
+            if (n.getRes() >= res) {
+                offerNearest(nearest, k, x, y, n);
+                continue;
+            }
+            after = n.getNext(0);
+            if (!after.hasNext(0) || Long.compareUnsigned(after.minRange(), quadMax) > 0) {
+                offerNearest(nearest, k, x, y, n);
+                continue;
+            }
+            for (long quadrant = 0; quadrant < 4; quadrant++) {
+                QuadIndex subQuad = quad.child(quadrant);
+                quads.add(new Pair<>(subQuad.minDistance(x, y), subQuad));
+            }
+        }
+        ArrayList<Pair<Long, V>> sorted = new ArrayList<>(nearest);
+        sorted.sort(Comparator.comparing(Pair::getL));
+        ArrayList<V> returnList = new ArrayList<>(sorted.size());
+        for (Pair<Long, V> p : sorted) {
+            returnList.add(p.getR());
+        }
+        return returnList;
+    }
+
+    private static <V extends Cartesian> void offerNearest(PriorityQueue<Pair<Long, V>> nearest, int k, int x, int y, Node<QuadIndex, V> n) {
+        for (int j = 0; j < n.size(); j++) {
+            offerNearest(nearest, k, x, y, n.getValue(j));
+        }
+    }
+
+    private static <V extends Cartesian> void offerNearest(PriorityQueue<Pair<Long, V>> nearest, int k, int x, int y, V c) {
+        long distance = squaredDistance(x, y, c.getX(), c.getY());
+        if (nearest.size() < k) {
+            nearest.add(new Pair<>(distance, c));
+        }
+        else if (distance < nearest.peek().getL()) {
+            nearest.poll();
+            nearest.add(new Pair<>(distance, c));
+        }
+    }
+
+    //Squared, so it stays exact; coordinates are at most 31 bits, so it fits in a long
+    private static long squaredDistance(long x1, long y1, long x2, long y2) {
+        return (x1 - x2) * (x1 - x2) + (y1 - y2) * (y1 - y2);
+    }
+
+    //Everything within r of (cx, cy), edge included. The circle is decomposed into quads rather than searched as its bounding box:
+    //points in quads fully inside come back as they are, and only the ones in quads on the edge get a distance check
+    public ArrayList<V> radiusSearch(int cx, int cy, int r) {
+        return radiusSearch(cx, cy, r, c -> true);
+    }
+
+    public ArrayList<V> radiusSearch(int cx, int cy, int r, Predicate<Cartesian> filter) {
+        ArrayList<Pair<QuadIndex, QuadIndex>> inside = new ArrayList<>(), boundary = new ArrayList<>();
+        if (r < 0) {
+            return new ArrayList<>();
+        }
+        origin.decomposeCircle(cx, cy, r, maxRes, inside, boundary);
+        long rSquared = (long) r * r;
+        ArrayList<V> resultList = new ArrayList<>();
+        skiplist.intervalsVisit(inside, c -> !filter.test(c) || resultList.add(c));
+        skiplist.intervalsVisit(boundary, c -> squaredDistance(cx, cy, c.getX(), c.getY()) > rSquared || !filter.test(c) || resultList.add(c));
+        return resultList;
+    }
+
+    //How many points are in the rectangle, edges included. Without aggregates it's a walk over all of them - still without building the list
+    public long count(int x1, int y1, int x2, int y2) {
+        if (measure == null) {
+            long[] count = {0};
+            forEachInRect(x1, y1, x2, y2, c -> count[0]++);
+            return count[0];
+        }
+        return aggregate(x1, y1, x2, y2).getCount();
+    }
+
+    //measure's count, sum, min and max over the points in the rectangle, for a tree built with a measure
+    //Goes down the quads overlapping the rectangle: one fully inside is added up from the skiplist's towers in a few steps however many points it holds,
+    //and one on the edge is split until it holds few enough points to check one by one. So the cost follows the rectangle's edge, not its area
+    public Aggregate aggregate(int x1, int y1, int x2, int y2) {
+        if (measure == null) {
+            throw new IllegalStateException("Not tracking aggregates");
+        }
+        int xMin, xMax, yMin, yMax;
+        xMin = Math.min(x1, x2);
+        xMax = Math.max(x1, x2);
+        yMin = Math.min(y1, y2);
+        yMax = Math.max(y1, y2);
+        Aggregate total = new Aggregate();
+        ArrayList<Pair<QuadIndex, QuadIndex>> inside = new ArrayList<>();
+        //Quads come in key order, so every search starts from the last one's precursors
+        Node[] finger = cursor().finger();
+        aggregate(origin.newIndex(0L, maxRes), xMin, yMin, xMax, yMax, finger, inside, total);
+        //Neighboring quads inside were merged into one interval, so each run of them costs one search
+        Node[] insideFinger = skiplist.newFinger();
+        for (Pair<QuadIndex, QuadIndex> interval : inside) {
+            skiplist.aggregate(interval.getL(), interval.getR(), total, skiplist.findPrecursors(interval.getL(), 0, insideFinger)[0].getNext(0));
+        }
+        return total;
+    }
+
+    //Adds up the points of quads on the edge into total, and collects the quads inside to add up from the towers afterwards
+    private void aggregate(QuadIndex quad, int xMin, int yMin, int xMax, int yMax, Node[] finger, ArrayList<Pair<QuadIndex, QuadIndex>> inside, Aggregate total) {
+        Pair<Integer, Integer> corner = quad.corner();
+        long side = 1L << quad.getRes();
+        if (corner.getL() + side - 1 < xMin || corner.getL() > xMax || corner.getR() + side - 1 < yMin || corner.getR() > yMax) {
+            return;
+        }
+        if (corner.getL() >= xMin && corner.getL() + side - 1 <= xMax && corner.getR() >= yMin && corner.getR() + side - 1 <= yMax) {
+            QuadIndex.appendInterval(inside, quad);
+            return;
+        }
+        //Only a few points: cheaper to check them than to split and search four more times
+        long quadEnd = quad.maxRange();
+        Node<QuadIndex, V> current = nodeAt(quad.minRange(), finger);
+        Aggregate edge = new Aggregate();
+        int seen = 0;
+        long key;
+        V c;
+        while (current.compareTo(quadEnd) <= 0 && seen < EDGE_POINTS) {
+            //A node larger than the quad also holds points outside it, which are some other quad's to count
+            for (int j = 0; j < current.size(); j++) {
+                key = current.isBucket() ? current.getKey(j) : current.getKey();
+                c = current.getValue(j);
+                if (Long.compareUnsigned(key, quad.minRange()) >= 0 && Long.compareUnsigned(key, quad.maxRange()) <= 0 && inRect(c, xMin, yMin, xMax, yMax)) {
+                    edge.add(measure.applyAsDouble(c));
+                }
+            }
+            seen += current.size();
+            current = current.getNext(0);
+        }
+        if (current.compareTo(quadEnd) > 0) {
+            total.add(edge);
+            return;
+        }
+        for (long quadrant = 0; quadrant < 4; quadrant++) {
+            aggregate(quad.child(quadrant), xMin, yMin, xMax, yMax, finger, inside, total);
+        }
+    }
+
+    public Optional<V> nearestNeighbor(Node<QuadIndex, V> n) {
+        return closest(n.getValue(), cursor().intervalsGet(nearestIntervals(origin.newIndex(n.getKey(), n.getRes()))));
+    }
+
+    //The sorted intervals a node's nearest neighbor has to be in: its parent quad, plus the quads next to it on the sides that aren't the edge of the map
+    //Worked out from the quad's corner rather than its key's bits, so it holds on any curve
+    ArrayList<Pair<QuadIndex, QuadIndex>> nearestIntervals(QuadIndex nodeIndex) {
+        ArrayList<Pair<QuadIndex, QuadIndex>> nearestIntervals = new ArrayList<>();
+        int res = nodeIndex.getRes();
+        Pair<Integer, Integer> corner = nodeIndex.corner();
+        long side = 1L << res;
+        int dx, dy;
+        boolean hasXNeighbor, hasYNeighbor;
+
+        if (res < maxRes) {
+            //This covers the three other potential co-quads... I think this is faster than checking for the actual nodes
+            nearestIntervals.add(new Pair<>(nodeIndex.newIndex(nodeIndex.minRange(res + 1), 0), nodeIndex.newIndex(nodeIndex.maxRange(res + 1), 0)));
+            //We only need to check two directions for any quadrant: away from its co-quads, in both x and y. Its existence implies there is space on those sides, unless that's the edge of the map
+            dx = (((corner.getL() >>> res) & 1) == 0) ? -1 : 1;
+            dy = (((corner.getR() >>> res) & 1) == 0) ? -1 : 1;
+            hasXNeighbor = (dx < 0) ? corner.getL() > 0 : corner.getL() + side - 1 < maxDim;
+            hasYNeighbor = (dy < 0) ? corner.getR() > 0 : corner.getR() + side - 1 < maxDim;
+            if (hasXNeighbor) {
+                nearestIntervals.add(quadInterval(nodeIndex.neighbor(dx, 0)));
+                nearestIntervals.add(quadInterval(nodeIndex.neighbor(dx, -dy)));
+            }
+            if (hasYNeighbor) {
+                nearestIntervals.add(quadInterval(nodeIndex.neighbor(0, dy)));
+                nearestIntervals.add(quadInterval(nodeIndex.neighbor(-dx, dy)));
             }
             if (hasXNeighbor && hasYNeighbor) {
-                //Refactor Indexes to support intervals?
-                neighborX = xPlusGetter.apply(nodeIndex);
-                neighborY = yPlusGetter.apply(nodeIndex);
-                neighborXY = yPlusGetter.apply(neighborX);
-                neighborXminusY = yMinusGetter.apply(neighborX);
-                neighborYminusX = xMinusGetter.apply(neighborY);
-                nearestIntervals.add(new Pair<>(new MortonIndex(neighborX.minRange()), new MortonIndex(neighborX.maxRange())));
-                nearestIntervals.add(new Pair<>(new MortonIndex(neighborY.minRange()), new MortonIndex(neighborY.maxRange())));
-                nearestIntervals.add(new Pair<>(new MortonIndex(neighborXY.minRange()), new MortonIndex(neighborXY.maxRange())));
-                nearestIntervals.add(new Pair<>(new MortonIndex(neighborXminusY.minRange()), new MortonIndex(neighborXminusY.maxRange())));
-                nearestIntervals.add(new Pair<>(new MortonIndex(neighborYminusX.minRange()), new MortonIndex(neighborYminusX.maxRange())));
-            }
-            else if (hasXNeighbor) {
-                neighborX = xPlusGetter.apply(nodeIndex);
-                neighborXminusY = yMinusGetter.apply(neighborX);
-                nearestIntervals.add(new Pair<>(new MortonIndex(neighborX.minRange()), new MortonIndex(neighborX.maxRange())));
-                nearestIntervals.add(new Pair<>(new MortonIndex(neighborXminusY.minRange()), new MortonIndex(neighborXminusY.maxRange())));
-            }
-            else if (hasYNeighbor) {
-                neighborY = yPlusGetter.apply(nodeIndex);
-                neighborYminusX = xMinusGetter.apply(neighborY);
-                nearestIntervals.add(new Pair<>(new MortonIndex(neighborY.minRange()), new MortonIndex(neighborY.maxRange())));
-                nearestIntervals.add(new Pair<>(new MortonIndex(neighborYminusX.minRange()), new MortonIndex(neighborYminusX.maxRange())));
+                nearestIntervals.add(quadInterval(nodeIndex.neighbor(dx, dy)));
             }
         }
         else {
-            nearestIntervals.add(new Pair<MortonIndex, MortonIndex>(new MortonIndex(nodeIndex.minRange()), new MortonIndex(nodeIndex.maxRange())));
+            nearestIntervals.add(quadInterval(nodeIndex));
         }
-        nearestIntervals.sort(new Comparator<Pair<MortonIndex, MortonIndex>>() {
-            @Override
-            public int compare(Pair<MortonIndex, MortonIndex> o1, Pair<MortonIndex, MortonIndex> o2) {
-                return Integer.compareUnsigned(o1.getL().minRange(), o2.getL().minRange());
-            }
-        });
+        nearestIntervals.sort((o1, o2) -> Long.compareUnsigned(o1.getL().minRange(), o2.getL().minRange()));
+        return nearestIntervals;
+    }
+
+    private static Pair<QuadIndex, QuadIndex> quadInterval(QuadIndex quad) {
+        return new Pair<>(quad.newIndex(quad.minRange(), 0), quad.newIndex(quad.maxRange(), 0));
+    }
+
+    //The candidate closest to from, other than from itself
+    static <V extends Cartesian> Optional<V> closest(V from, Iterable<V> candidates) {
         double lowestDistance = Double.MAX_VALUE;
-        int nodeX = n.getValue().getX();
-        int nodeY = n.getValue().getY();
+        int nodeX = from.getX();
+        int nodeY = from.getY();
         double distance;
         Optional<V> returnValue = Optional.empty();
-        for (V c : skiplist.intervalsGet(nearestIntervals)) {
+        for (V c : candidates) {
             distance = Math.sqrt(Math.pow(nodeX - c.getX(), 2) + Math.pow(nodeY - c.getY(), 2));
-            if (distance < lowestDistance && c.equals(n.getValue()) == false) {
+            if (distance < lowestDistance && c.equals(from) == false) {
                 lowestDistance = distance;
                 returnValue = Optional.of(c);
             }
@@ -252,13 +1002,8 @@ public class Quadtree<V extends Cartesian> {
     }
 
 
-    //What does update entail? It means our Cartesian changed coordinates and we need to check and restructure if necessary... but of course, if the coordinate is different, we can't reuse it as index
-    //Or should we just have a method to check everything contained in the quadtree and restructure as appropriate?
+    //Changing coordinates goes through move, since the value's old position is the only way to find its node
     /*
-    public boolean update(Cartesian c) {
-
-    }
-
     public V get(Cartesian c) {
 
     }
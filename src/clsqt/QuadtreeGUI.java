@@ -77,9 +77,11 @@ class QTPanel extends JPanel {
 }
 
 class nodePanel extends JPanel {
-    Node<MortonIndex, Cartesian> thisNode;
-    nodePanel(Node n) {
+    Node<QuadIndex, Cartesian> thisNode;
+    QuadIndex origin; //Nodes only keep their key, so the curve comes from the tree
+    nodePanel(Node n, QuadIndex origin) {
         thisNode = n;
+        this.origin = origin;
         this.setVisible(true);
         this.setBackground(Color.red);
         this.setBorder(BorderFactory.createLineBorder(Color.black));
@@ -91,9 +93,9 @@ class nodePanel extends JPanel {
         super.paintComponent(g);
         Pair<Integer, Integer> quadEntry, pointEntry;
         int s, x, y;
-        MortonIndex currentIndex = thisNode.getIndex();
-        quadEntry = MortonIndex.decode(currentIndex.minRange());
-        pointEntry = MortonIndex.decode(currentIndex);
+        QuadIndex currentIndex = origin.newIndex(thisNode.getKey(), thisNode.getRes());
+        quadEntry = currentIndex.corner();
+        pointEntry = currentIndex.cellAt(currentIndex.toLong());
         s = (int) Math.pow(2, currentIndex.getRes());
         x = quadEntry.getL();
         y = quadEntry.getR();
@@ -135,7 +137,7 @@ class QTPopup extends JPopupMenu {
                 assert(y < quadtree.maxDim);
                 assert(x < quadtree.maxDim);
                 quadtree.add(new Point(x, y));
-                parentPanel.add(new nodePanel(quadtree.skiplist.findPrecursors(new MortonIndex(MortonIndex.encode(x, y), 0), 0)[0].getNext(0)));
+                parentPanel.add(new nodePanel(quadtree.skiplist.findPrecursors(quadtree.cellIndex(x, y), 0)[0].getNext(0), quadtree.origin));
                 parentPanel.validate();
                 parentPanel.repaint();
             }
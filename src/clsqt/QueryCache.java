@@ -0,0 +1,212 @@
+package clsqt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Supplier;
+
+//Results of recent rectSearch and kNearest calls, for callers that keep asking the same thing between writes (see Quadtree.cacheQueries)
+//Least recently used goes first once the results held add up to more than maxValues. A write only drops the results it could change: every entry is filed
+//under the keys its query depends on - the rectangle, or for kNearest the square around the kth distance - so a changed key finds them without a flush
+//The filing is coarse on purpose: the region's decomposition into a few intervals, each rounded out to at most four aligned blocks of keys on one level, so a
+//lookup is one hash probe per level in use. Whatever it turns up is checked against the changed point exactly before it's dropped
+class QueryCache<V extends Cartesian> {
+    static final int REGION_INTERVALS = 4; //How finely an entry's region is decomposed before filing - finer means fewer false hits and more blocks per entry
+    private static final int RECT = 0, NEAREST = 1;
+    private final QuadIndex origin;
+    private final int maxRes;
+    private final long maxValues;
+    private final LinkedHashMap<Query, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true); //Access order, eldest first
+    private final HashMap<Long, ArrayList<Entry<V>>>[] blocks; //Per level r, the entries filed under each block of 4^r keys, by the block's key >>> 2r
+    private long values = 0, hits = 0, misses = 0;
+
+    QueryCache(QuadIndex origin, int maxRes, long maxValues) {
+        this.origin = origin;
+        this.maxRes = maxRes;
+        this.maxValues = maxValues;
+        blocks = new HashMap[maxRes + 1];
+    }
+
+    //The rectangle's points, from the cache or else from search. Corners already ordered
+    ArrayList<V> rect(int xMin, int yMin, int xMax, int yMax, Supplier<ArrayList<V>> search) {
+        Query query = new Query(RECT, xMin, yMin, xMax, yMax);
+        ArrayList<V> cached = lookup(query);
+        if (cached != null) {
+            return cached;
+        }
+        ArrayList<V> result = search.get();
+        store(new Entry<>(query, result, -1), xMin, yMin, xMax, yMax);
+        return new ArrayList<>(result);
+    }
+
+    //kNearest's answer, from the cache or else from search. It can only change for a point no further out than the kth - or anywhere, if there were fewer than k
+    ArrayList<V> nearest(int x, int y, int k, Supplier<ArrayList<V>> search) {
+        if (k <= 0) {
+            return search.get();
+        }
+        Query query = new Query(NEAREST, x, y, k, 0);
+        ArrayList<V> cached = lookup(query);
+        if (cached != null) {
+            return cached;
+        }
+        ArrayList<V> result = search.get();
+        int maxDim = (1 << maxRes) - 1;
+        if (result.size() < k) {
+            store(new Entry<>(query, result, -1), 0, 0, maxDim, maxDim);
+        }
+        else {
+            V kth = result.get(result.size() - 1);
+            long distance = (long) (kth.getX() - x) * (kth.getX() - x) + (long) (kth.getY() - y) * (kth.getY() - y);
+            int r = (int) Math.min(Math.ceil(Math.sqrt(distance)), maxDim);
+            store(new Entry<>(query, result, distance), Math.max(0, x - r), Math.max(0, y - r), Math.min(maxDim, x + r), Math.min(maxDim, y + r));
+        }
+        return new ArrayList<>(result);
+    }
+
+    //Hands back a copy, so callers can do what they like with their list
+    private synchronized ArrayList<V> lookup(Query query) {
+        Entry<V> entry = entries.get(query);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new ArrayList<>(entry.result);
+    }
+
+    private synchronized void store(Entry<V> entry, int xMin, int yMin, int xMax, int yMax) {
+        if (entry.result.size() + 1 > maxValues) {
+            return;
+        }
+        Entry<V> old = entries.put(entry.query, entry);
+        if (old != null) {
+            unfile(old);
+        }
+        values += entry.result.size() + 1;
+        for (Pair<QuadIndex, QuadIndex> interval : origin.rectIntervals(xMin, yMin, xMax, yMax, REGION_INTERVALS, 0.5)) {
+            file(entry, interval.getL().minRange(), interval.getR().maxRange());
+        }
+        Iterator<Entry<V>> eldest = entries.values().iterator();
+        while (values > maxValues) {
+            old = eldest.next();
+            eldest.remove();
+            unfile(old);
+        }
+    }
+
+    //Files entry under the fewest levels' worth of aligned blocks - at most four - that cover keys lo to hi
+    private void file(Entry<V> entry, long lo, long hi) {
+        int r = 0;
+        while (r < maxRes && (hi >>> (2 * r)) - (lo >>> (2 * r)) >= 4) {
+            r++;
+        }
+        if (blocks[r] == null) {
+            blocks[r] = new HashMap<>();
+        }
+        for (long block = lo >>> (2 * r); block <= hi >>> (2 * r); block++) {
+            blocks[r].computeIfAbsent(block, b -> new ArrayList<>(2)).add(entry);
+            entry.filed.add(new long[] {r, block});
+        }
+    }
+
+    private void unfile(Entry<V> entry) {
+        ArrayList<Entry<V>> filed;
+        for (long[] place : entry.filed) {
+            filed = blocks[(int) place[0]].get(place[1]);
+            filed.remove(entry);
+            if (filed.isEmpty()) {
+                blocks[(int) place[0]].remove(place[1]);
+            }
+        }
+        values -= entry.result.size() + 1;
+    }
+
+    //A point went in or came out at (x, y), whose key is key: drops every entry whose answer that could change
+    synchronized void invalidate(long key, int x, int y) {
+        ArrayList<Entry<V>> stale = null;
+        ArrayList<Entry<V>> filed;
+        for (int r = 0; r <= maxRes; r++) {
+            if (blocks[r] == null || (filed = blocks[r].get(key >>> (2 * r))) == null) {
+                continue;
+            }
+            for (Entry<V> entry : filed) {
+                if (entry.dependsOn(x, y)) {
+                    if (stale == null) {
+                        stale = new ArrayList<>();
+                    }
+                    stale.add(entry);
+                }
+            }
+        }
+        if (stale == null) {
+            return;
+        }
+        for (Entry<V> entry : stale) {
+            //An entry filed under two blocks on the path can turn up twice
+            if (entries.remove(entry.query, entry)) {
+                unfile(entry);
+            }
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        for (int r = 0; r <= maxRes; r++) {
+            blocks[r] = null;
+        }
+        values = 0;
+    }
+
+    synchronized double hitRate() {
+        return (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+    }
+
+    //A query, corners ordered, so the same rectangle however it was asked for is one entry
+    private static class Query {
+        final int kind, a, b, c, d;
+
+        Query(int kind, int a, int b, int c, int d) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Query)) {
+                return false;
+            }
+            Query q = (Query) o;
+            return kind == q.kind && a == q.a && b == q.b && c == q.c && d == q.d;
+        }
+
+        @Override
+        public int hashCode() {
+            return (((kind * 31 + a) * 31 + b) * 31 + c) * 31 + d;
+        }
+    }
+
+    private static class Entry<V extends Cartesian> {
+        final Query query;
+        final ArrayList<V> result;
+        final long distance; //kNearest's kth squared distance, or -1 for a rectangle or a kNearest that came up short
+        final ArrayList<long[]> filed = new ArrayList<>(4); //Level and block of each place we're filed under
+
+        Entry(Query query, ArrayList<V> result, long distance) {
+            this.query = query;
+            this.result = result;
+            this.distance = distance;
+        }
+
+        //Whether a point going in or out at (x, y) can change our answer
+        boolean dependsOn(int x, int y) {
+            if (query.kind == RECT) {
+                return x >= query.a && x <= query.c && y >= query.b && y <= query.d;
+            }
+            return distance < 0 || (long) (x - query.a) * (x - query.a) + (long) (y - query.b) * (y - query.b) <= distance;
+        }
+    }
+}
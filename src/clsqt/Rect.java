@@ -0,0 +1,29 @@
+package clsqt;
+
+//A query rectangle, for the batch searches. Corners can come in either order, same as rectSearch takes them
+public class Rect {
+    private final int xMin, yMin, xMax, yMax;
+
+    Rect(int x1, int y1, int x2, int y2) {
+        xMin = Math.min(x1, x2);
+        yMin = Math.min(y1, y2);
+        xMax = Math.max(x1, x2);
+        yMax = Math.max(y1, y2);
+    }
+
+    public int getXMin() {
+        return xMin;
+    }
+
+    public int getYMin() {
+        return yMin;
+    }
+
+    public int getXMax() {
+        return xMax;
+    }
+
+    public int getYMax() {
+        return yMax;
+    }
+}
@@ -0,0 +1,204 @@
+package clsqt;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+//A Quadtree split into 2^shardBits shards by the top bits of the Morton code, each with its own lock, so writers in different regions never wait on each other
+//Top bits of a Morton code pick out a quadrant (or half of one, for an odd number of bits), so every shard is one contiguous key range and one block of the map
+//Each shard is a full-size Quadtree that only ever holds its own points. Its quads are sized against those points alone, so they can be larger than in one big tree -
+//which only makes a nearest neighbor search look at more, never less
+public class ShardedQuadtree<V extends Cartesian> {
+    private final Quadtree<V>[] shards;
+    private final ReentrantReadWriteLock[] locks;
+    private final int shardShift; //How far to shift a key to get its shard
+    int maxDim;
+
+    ShardedQuadtree(int powTwo, int shardBits) throws Exception {
+        if (shardBits < 0 || shardBits > 2 * powTwo) {
+            throw new Exception();
+        }
+        shards = new Quadtree[1 << shardBits];
+        locks = new ReentrantReadWriteLock[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Quadtree<>(powTwo);
+            locks[i] = new ReentrantReadWriteLock();
+        }
+        shardShift = 2 * powTwo - shardBits;
+        maxDim = shards[0].maxDim;
+    }
+
+    public boolean add(V c) {
+        int shard = shardOf(LongMortonIndex.encode(c));
+        locks[shard].writeLock().lock();
+        try {
+            return shards[shard].add(c);
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+
+    public boolean remove(V c) {
+        int shard = shardOf(LongMortonIndex.encode(c));
+        locks[shard].writeLock().lock();
+        try {
+            return shards[shard].remove(c);
+        } finally {
+            locks[shard].writeLock().unlock();
+        }
+    }
+
+    //Batches are split by shard first, so each shard's lock is taken once per batch rather than once per point
+    public boolean addAll(Collection<V> values) {
+        ArrayList<V>[] byShard = splitByShard(values);
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (byShard[shard] != null) {
+                locks[shard].writeLock().lock();
+                try {
+                    shards[shard].addAll(byShard[shard]);
+                } finally {
+                    locks[shard].writeLock().unlock();
+                }
+            }
+        }
+        return true;
+    }
+
+    public int removeAll(Collection<V> values) {
+        ArrayList<V>[] byShard = splitByShard(values);
+        int removed = 0;
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (byShard[shard] != null) {
+                locks[shard].writeLock().lock();
+                try {
+                    removed += shards[shard].removeAll(byShard[shard]);
+                } finally {
+                    locks[shard].writeLock().unlock();
+                }
+            }
+        }
+        return removed;
+    }
+
+    //Same contract as Quadtree.move. Crossing into another shard is a remove from one and an add to the other, with both locked so nobody sees the point in neither
+    public boolean move(V value, int newX, int newY) {
+        int oldShard = shardOf(LongMortonIndex.encode(value));
+        LongMortonIndex newIndex = new LongMortonIndex(newX, newY, 0);
+        int newShard = shardOf(newIndex.toLong());
+        if (oldShard == newShard) {
+            locks[oldShard].writeLock().lock();
+            try {
+                return shards[oldShard].move(value, newX, newY);
+            } finally {
+                locks[oldShard].writeLock().unlock();
+            }
+        }
+        //Always lock the lower shard first, so two points crossing the same border in opposite directions can't deadlock
+        ReentrantReadWriteLock first = locks[Math.min(oldShard, newShard)], second = locks[Math.max(oldShard, newShard)];
+        first.writeLock().lock();
+        second.writeLock().lock();
+        try {
+            if (shards[oldShard].nodeOf(value) == null) {
+                return false;
+            }
+            shards[oldShard].remove(value);
+            return shards[newShard].add(value, newIndex);
+        } finally {
+            second.writeLock().unlock();
+            first.writeLock().unlock();
+        }
+    }
+
+    public ArrayList<V> rectSearch(int x1, int y1, int x2, int y2) {
+        return rectSearch(x1, y1, x2, y2, c -> true);
+    }
+
+    public ArrayList<V> rectSearch(int x1, int y1, int x2, int y2, Predicate<Cartesian> filter) {
+        int xMin, xMax, yMin, yMax;
+        xMin = Math.min(x1, x2);
+        xMax = Math.max(x1, x2);
+        yMin = Math.min(y1, y2);
+        yMax = Math.max(y1, y2);
+        ArrayList<V> resultList = new ArrayList<>();
+        //Checked as each shard's walk comes to them, so nothing outside is ever collected
+        intervalsVisit(LongMortonIndex.decompose(xMin, yMin, xMax, yMax), c -> !(c.getX() >= xMin && c.getX() <= xMax && c.getY() >= yMin && c.getY() <= yMax)
+                || !filter.test(c) || resultList.add(c));
+        return resultList;
+    }
+
+    //The neighbor intervals come from value's own shard, but the neighbor itself can be in any shard they reach
+    public Optional<V> nearestNeighbor(V value) {
+        int shard = shardOf(LongMortonIndex.encode(value));
+        ArrayList<Pair<QuadIndex, QuadIndex>> nearestIntervals;
+        locks[shard].readLock().lock();
+        try {
+            Node<QuadIndex, V> n = shards[shard].nodeOf(value);
+            if (n == null) {
+                return Optional.empty();
+            }
+            nearestIntervals = shards[shard].nearestIntervals(shards[shard].origin.newIndex(n.getKey(), n.getRes()));
+        } finally {
+            locks[shard].readLock().unlock();
+        }
+        return Quadtree.closest(value, intervalsGet(nearestIntervals));
+    }
+
+    //Hands every shard the intervals that reach into its key range, in order, and merges what comes back
+    //An interval crossing a border goes to both sides - each shard only holds its own points, so nothing comes back twice
+    //One shard at a time, so a query never holds more than one lock
+    ArrayList<V> intervalsGet(ArrayList<Pair<QuadIndex, QuadIndex>> intervals) {
+        ArrayList<V> resultList = new ArrayList<>();
+        intervalsVisit(intervals, resultList::add);
+        return resultList;
+    }
+
+    //intervalsGet's walk, handing each value to visitor under its shard's read lock instead - until it returns false. Returns whether it got through them all
+    boolean intervalsVisit(ArrayList<Pair<QuadIndex, QuadIndex>> intervals, Predicate<? super V> visitor) {
+        ArrayList<Pair<QuadIndex, QuadIndex>>[] byShard = new ArrayList[shards.length];
+        for (Pair<QuadIndex, QuadIndex> interval : intervals) {
+            //Clamped like Skiplist.intervalsGet, which just runs out of nodes when an interval goes past the edge of the map
+            for (int shard = shardOf(interval.getL().minRange()); shard <= Math.min(shardOf(interval.getR().maxRange()), shards.length - 1); shard++) {
+                if (byShard[shard] == null) {
+                    byShard[shard] = new ArrayList<>();
+                }
+                byShard[shard].add(interval);
+            }
+        }
+        for (int shard = 0; shard < shards.length; shard++) {
+            if (byShard[shard] != null) {
+                locks[shard].readLock().lock();
+                try {
+                    if (!shards[shard].skiplist.intervalsVisit(byShard[shard], visitor)) {
+                        return false;
+                    }
+                } finally {
+                    locks[shard].readLock().unlock();
+                }
+            }
+        }
+        return true;
+    }
+
+    private ArrayList<V>[] splitByShard(Collection<V> values) {
+        ArrayList<V>[] byShard = new ArrayList[shards.length];
+        int shard;
+        for (V c : values) {
+            shard = shardOf(LongMortonIndex.encode(c));
+            if (byShard[shard] == null) {
+                byShard[shard] = new ArrayList<>();
+            }
+            byShard[shard].add(c);
+        }
+        return byShard;
+    }
+
+    int shardOf(long key) {
+        return (int) (key >>> shardShift);
+    }
+
+    int shardCount() {
+        return shards.length;
+    }
+}
@@ -1,7 +1,17 @@
 package clsqt;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToDoubleFunction;
 
 public class Skiplist<I extends Index<I>, V> {
     //Our skiplist is different from most implementations in two respects: link direction alternates depending on layer and nodes will map to a range of numbers (disallowing overlaps)
@@ -10,11 +20,25 @@ public class Skiplist<I extends Index<I>, V> {
     private int listCeiling = 24; //Should be more than enough - if every 3rd node on a layer gets bumped up, we can fit 3^24 nodes, surpassing max int range
     private int[] heightTracker;
     private int size = 0; //Fix
+    long deletions = 0; //Bumped for every node unlinked, so a SkiplistCursor knows when its finger may point at one
     private Node<I, V> headNode, tailNode;
+    private ToDoubleFunction<? super V> measure; //null unless we're keeping aggregates on the towers
+    private Node[] directory; //Express lane by key prefix - see buildDirectory. null unless asked for
+    private int directoryLevel, directoryShift;
+    final SlabStore<I, V> slabs; //Where our nodes live if not on the heap, or null - see SlabStore
 
     public Skiplist(I head, I tail) {
+        this(head, tail, (SlabStore<I, V>) null);
+    }
+
+    //Every node we make goes in slabs, and goes back to it once unlinked. Nodes handed to us from elsewhere are copied in (see adopt)
+    Skiplist(I head, I tail, SlabStore<I, V> slabs) {
+        this.slabs = slabs;
         headNode = new HeadNode(head);
         tailNode = new TailNode(tail);
+        if (slabs != null) {
+            slabs.attach(headNode, tailNode);
+        }
         currentMaxHeight = 0;
         heightTracker = new int[listCeiling];
         //Link the two nodes that hold everything in between. Apparently initializing an ArrayList with some capacity doesn't actually make it all accessible so we have to start from 0
@@ -26,78 +50,339 @@ public class Skiplist<I extends Index<I>, V> {
             }
         }
     }
-    //Add constructor for adding a set of indexed values?
+
+    //Builds the whole list bottom-up from entries already sorted by index, none overlapping, instead of descending once per entry
+    //Heights are handed out deterministically - every 3rd node gets level 1, every 9th level 2, etc - which is the 1:3 ratio pickNodeHeight aims for
+    public Skiplist(I head, I tail, List<Pair<I, V>> sortedEntries) {
+        this(head, tail, null, sortedEntries.size(), (i, h) -> new QTNode<I, V>(sortedEntries.get(i).getL(), sortedEntries.get(i).getR(), h));
+    }
+
+    //The same build for callers that make their own nodes, like the Quadtree's buckets: newNode(i, h) makes the ith of count nodes, in index order, h levels tall
+    //newNode has to make them in slabs, if there are any (see newNode)
+    Skiplist(I head, I tail, SlabStore<I, V> slabs, int count, BiFunction<Integer, Integer, Node<I, V>> newNode) {
+        this(head, tail, slabs);
+        Node<I, V>[] lastOnLevel = newLastOnLevel();
+        int h, position;
+        for (int i = 0; i < count; i++) {
+            h = 0;
+            position = i + 1;
+            while (position % 3 == 0 && h < listCeiling - 1) {
+                position /= 3;
+                h++;
+            }
+            linkLast(lastOnLevel, newNode.apply(i, h));
+        }
+        linkTail(lastOnLevel);
+    }
+
+    //Relinks nodes that already have their heights, in index order - a snapshot's, say, which was saved with them
+    Skiplist(I head, I tail, SlabStore<I, V> slabs, Iterator<? extends Node<I, V>> sortedNodes) {
+        this(head, tail, slabs);
+        Node<I, V>[] lastOnLevel = newLastOnLevel();
+        while (sortedNodes.hasNext()) {
+            linkLast(lastOnLevel, adopt(sortedNodes.next()));
+        }
+        linkTail(lastOnLevel);
+    }
+
+    //A single value's node, in slabs if there are any and on the heap otherwise
+    static <I extends Index<I>, V> Node<I, V> newNode(SlabStore<I, V> slabs, long key, int res, V v, int h) {
+        return (slabs == null) ? new QTNode<I, V>(key, res, v, h) : slabs.newNode(key, res, v, h);
+    }
+
+    //The same for a bucket of the first size keys and values
+    static <I extends Index<I>, V> Node<I, V> newBucket(SlabStore<I, V> slabs, long key, int res, long[] keys, Object[] values, int size, int h) {
+        return (slabs == null) ? new QTNode<I, V>(key, res, keys, values, size, h) : slabs.newBucket(key, res, keys, values, size, h);
+    }
+
+    Node<I, V> newNode(long key, int res, V v, int h) {
+        return newNode(slabs, key, res, v, h);
+    }
+
+    //n itself if it's already stored the way we store nodes, otherwise a copy that is, with the same height and unlinked
+    private Node<I, V> adopt(Node<I, V> n) {
+        if ((slabs == null) ? n instanceof QTNode : slabs.owns(n)) {
+            return n;
+        }
+        if (!n.isBucket()) {
+            return newNode(n.getKey(), n.getRes(), n.getValue(), n.getMaxHeight());
+        }
+        long[] keys = new long[n.size()];
+        Object[] values = new Object[n.size()];
+        for (int j = 0; j < n.size(); j++) {
+            keys[j] = n.getKey(j);
+            values[j] = n.getValue(j);
+        }
+        return newBucket(slabs, n.getKey(), n.getRes(), keys, values, n.size(), n.getMaxHeight());
+    }
+
+    //The last node linked on each level so far, in index order
+    private Node<I, V>[] newLastOnLevel() {
+        Node<I, V>[] lastOnLevel = new Node[listCeiling];
+        Arrays.fill(lastOnLevel, headNode);
+        return lastOnLevel;
+    }
+
+    private void linkLast(Node<I, V>[] lastOnLevel, Node<I, V> n) {
+        int h = n.getMaxHeight();
+        for (int l = 0; l <= h; l++) {
+            //Even levels link forward, so the last node points at us; odd levels link backward, so we point at it
+            if (l % 2 == 0) {
+                lastOnLevel[l].setNext(l, n);
+            }
+            else {
+                n.setNext(l, lastOnLevel[l]);
+            }
+            lastOnLevel[l] = n;
+        }
+        insertHeightUpdate(h);
+        size++;
+    }
+
+    private void linkTail(Node<I, V>[] lastOnLevel) {
+        for (int h = 0; h < listCeiling; h++) {
+            if (h % 2 == 0) {
+                lastOnLevel[h].setNext(h, tailNode);
+            }
+            else {
+                tailNode.setNext(h, lastOnLevel[h]);
+            }
+        }
+    }
+
     public V get(I i) {
-        Node<I, V> targetNode = findPrecursors(i, 0)[0].getNext(0);
+        return get(i.toLong(), i.getRes());
+    }
+
+    //get by the key itself (see Index.toLong), for a single-key index: nothing is allocated on the way down
+    public V get(long key) {
+        return get(key, 0);
+    }
+
+    V get(long key, int res) {
+        return valueAt(search(key, res), key, res);
+    }
+
+    public boolean contains(long key) {
+        return get(key) != null;
+    }
+
+    V get(I i, Node[] finger) {
+        return valueAt(firstNodeFrom(i.toLong(), i.getRes(), finger), i.toLong(), i.getRes());
+    }
+
+    //The value at key in targetNode, the node search found for it
+    private V valueAt(Node<I, V> targetNode, long key, int res) {
         //Perhaps make an protected unsafeGet to avoid the branching?
-        if (targetNode.containsIndex(i)) {
-            return targetNode.getValue();
+        if (!targetNode.containsKey(key, res)) {
+            return null;
+        }
+        if (targetNode.isBucket()) {
+            for (int j = 0; j < targetNode.size(); j++) {
+                if (targetNode.getKey(j) == (key & ~QuadIndex.lowBits(res))) {
+                    return targetNode.getValue(j);
+                }
+            }
+            return null;
         }
-        return null;
+        return targetNode.getValue();
     }
 
     //Given a SORTED list of intervals (1 or more indexes), return values of all nodes within the intervals, without duplicates
     //If intervals exceeds skiplist range, we run out of nodes
-    //BUG: Subtracts head node from intervals
-    public ArrayList<V> intervalsGet(ArrayList<Pair<I, I>> intervals) {
+    //Only compares through Node/Index, so it works for any index - it used to rebuild interval starts as MortonIndexes, which tied it to 32-bit keys
+    public ArrayList<V> intervalsGet(List<Pair<I, I>> intervals) {
         ArrayList<V> returnList = new ArrayList<V>();
-        Node<I, V> currentNode;
-        Iterator<Pair<I, I>> it = intervals.iterator();
-        Pair<I, I> interval;
-        while (it.hasNext()) {
-            interval = it.next();
-            currentNode = findPrecursors(interval.getL(), 0)[0];
-            //If there's no overlap at all, get next node - guaranteed to hit or overshoot
-            if (Integer.compareUnsigned(currentNode.getIndex().maxRange(), interval.getL().minRange()) < 0) {
-                currentNode = currentNode.getNext();
+        intervalsVisit(intervals, returnList::add);
+        return returnList;
+    }
+
+    //The walk behind intervalsGet, without building a list: every value within the intervals goes to visitor, in index order, until visitor returns false
+    //Returns whether we got through all of them
+    public boolean intervalsVisit(List<Pair<I, I>> intervals, Predicate<? super V> visitor) {
+        return intervalsVisit(intervals, visitor, newFinger());
+    }
+
+    //Each gap between intervals is a finger search from the last one rather than a descent from the top - intervals are sorted, and usually close
+    boolean intervalsVisit(List<Pair<I, I>> intervals, Predicate<? super V> visitor, Node[] finger) {
+        Node<I, V> currentNode = headNode;
+        for (Pair<I, I> interval : intervals) {
+            //Only seek again if the last interval left us short of this one - a big node can span several intervals
+            if (endsBefore(currentNode, interval.getL())) {
+                currentNode = firstNodeFrom(interval.getL(), finger);
             }
-            //While the interval start is less than currentNode max... But we don't want to advance the interval without having checked it at all
-            while (Integer.compareUnsigned(currentNode.getIndex().maxRange(), interval.getL().minRange()) >= 0) {
-                //We want to check this for every overlapping node/interval combo... valid as long as our single value position is the same as the node's
-                if (currentNode.compareTo(interval.getL()) >= 0 && currentNode.compareTo(interval.getR()) <= 0) {
-                    returnList.add(currentNode.getValue());
-                }
-                //Assumes sorted intervals and nodes so that we're removing intervals monotonically
-                //Wish we had operator overloading or unsigned ints... maybe time to refactor for intervals/head&tail nodes
-                if (Integer.compareUnsigned(currentNode.getIndex().maxRange(), interval.getR().maxRange()) >= 0) {
-                    it.remove();
-                    if (it.hasNext()) {
-                        interval = it.next();
-                        //If we iterate to last and don't continue the while loop, exits here without checking last interval...
-                        if (Integer.compareUnsigned(currentNode.getIndex().maxRange(), interval.getL().minRange()) < 0) {
-                            currentNode = findPrecursors(interval.getL(), 0)[0].getNext();
-                        }
+            while (true) {
+                //A single value's position is the node's; a bucket's values each have their own, and may be spread over several intervals
+                if (currentNode.isBucket()) {
+                    if (!visitBucket(currentNode, interval, visitor)) {
+                        return false;
                     }
-                    else {
-                        //Out of intervals to search, done!
-                        break;
+                }
+                else if (currentNode.compareTo(interval.getL()) >= 0 && currentNode.compareTo(interval.getR()) <= 0) {
+                    if (!visitor.test(currentNode.getValue())) {
+                        return false;
                     }
                 }
-                //Would not reach here if we failed the while loop condition, there has to be at least some overlap
-                else {
-                    interval.setL((I) new MortonIndex(currentNode.getIndex().maxRange() + 1));
-                    //Here our interval no longer intersects with current node; Overlap or overshoot ok - if next node is short, we start seeking again from the very top
-                    //As long as we don't search outside the boundaries, this is always valid
-                    currentNode = currentNode.getNext();
+                //Assumes sorted intervals and nodes; the tail always reaches past, so we can't run off the end
+                if (reachesPast(currentNode, interval.getR())) {
+                    break;
                 }
+                currentNode = currentNode.getNext();
+            }
+        }
+        return true;
+    }
+
+    private boolean visitBucket(Node<I, V> n, Pair<I, I> interval, Predicate<? super V> visitor) {
+        for (int j = 0; j < n.size() && Long.compareUnsigned(n.getKey(j), interval.getR().maxRange()) <= 0; j++) {
+            if (inInterval(n.getKey(j), interval) && !visitor.test(n.getValue(j))) {
+                return false;
             }
         }
+        return true;
+    }
+
+    //Whether a bucket value's key is in the interval - by range, the same test compareTo gives a node against the interval's cell-sized ends
+    boolean inInterval(long key, Pair<I, I> interval) {
+        return Long.compareUnsigned(key, interval.getL().minRange()) >= 0 && Long.compareUnsigned(key, interval.getR().maxRange()) <= 0;
+    }
+
+    //The same walk, one value at a time, for streams - nothing happens until someone asks for the next value
+    public Spliterator<V> intervalsSpliterator(List<Pair<I, I>> intervals) {
+        return new IntervalSpliterator(intervals, 0, intervals.size());
+    }
+
+    //intervalsGet with the sorted intervals cut into contiguous runs, each scanned as its own task on executor; results come back concatenated in index order
+    //keep runs inside the tasks, so whatever filtering the caller needs happens in parallel too. Only safe while nothing is writing, like any other read here
+    public ArrayList<V> intervalsGet(List<Pair<I, I>> intervals, Predicate<V> keep, Executor executor) {
+        int chunks = Math.min(intervals.size(), 4 * Runtime.getRuntime().availableProcessors()); //A few per core, so one dense chunk doesn't leave the rest idle
+        ArrayList<CompletableFuture<ArrayList<V>>> futures = new ArrayList<>(chunks);
+        //Cut by share of the key space covered rather than number of intervals - decompose's intervals range from single cells to whole quadrants
+        double totalSpan = 0, coveredSpan = 0;
+        for (Pair<I, I> interval : intervals) {
+            totalSpan += span(interval);
+        }
+        int start = 0;
+        for (int i = 0; i < intervals.size(); i++) {
+            coveredSpan += span(intervals.get(i));
+            if (coveredSpan >= totalSpan * (futures.size() + 1) / chunks || i == intervals.size() - 1) {
+                List<Pair<I, I>> chunk = intervals.subList(start, i + 1);
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    ArrayList<V> chunkList = new ArrayList<V>();
+                    intervalsVisit(chunk, v -> !keep.test(v) || chunkList.add(v));
+                    return chunkList;
+                }, executor));
+                start = i + 1;
+            }
+        }
+        int size = 0;
+        for (CompletableFuture<ArrayList<V>> future : futures) {
+            size += future.join().size();
+        }
+        ArrayList<V> returnList = new ArrayList<V>(size);
+        for (CompletableFuture<ArrayList<V>> future : futures) {
+            returnList.addAll(future.join());
+        }
         return returnList;
     }
 
+    //How many keys an interval covers, as a double since it can be all 2^64 of them
+    private double span(Pair<I, I> interval) {
+        long span = interval.getR().maxRange() - interval.getL().minRange();
+        return ((span >= 0) ? span : (double) (span >>> 1) * 2.0) + 1;
+    }
+
+    //The first node whose range reaches i (may be the tail). The precursor can only reach i by containing it, since quads don't overlap
+    Node<I, V> firstNodeFrom(I i) {
+        return search(i);
+    }
+
+    Node<I, V> firstNodeFrom(I i, Node[] finger) {
+        return firstNodeFrom(i.toLong(), i.getRes(), finger);
+    }
+
+    Node<I, V> firstNodeFrom(long key, int res, Node[] finger) {
+        Node<I, V> precursor = findPrecursors(key, res, 0, finger)[0];
+        return precursor.containsKey(key, res) ? precursor : precursor.getNext(0);
+    }
+
+    //Whether the node's whole range is below i
+    boolean endsBefore(Node<I, V> n, I i) {
+        return !n.containsIndex(i) && n.compareTo(i) < 0;
+    }
+
+    //Whether the node's range reaches i's end or beyond
+    boolean reachesPast(Node<I, V> n, I i) {
+        return n.containsIndex(i) || n.compareTo(i) > 0;
+    }
+
     public boolean put(I i, V v) {
         int h = pickNodeHeight();
-        Node[] precursorNodes = findPrecursors(i, h);
+        Node[] precursorNodes = findPrecursors(i, precursorHeight(h));
         if (precursorNodes[0].getNext(0).containsIndex(i)) {
-            //Let's hold off on storing multiple values in a node for now - if we collide, replace with new
-            precursorNodes[0].getNext(0).setValue(v);
+            //We're a map here, so if we collide, replace with new - buckets of values sharing a quad are the Quadtree's business
+            replaceValue(precursorNodes, precursorNodes[0].getNext(0), v);
+            return true;
+        }
+        insertNode(precursorNodes, newNode(i.toLong(), i.getRes(), v, h));
+        size++;
+        return true;
+    }
+
+    //put for a whole batch: sorted first, so each entry's search can pick up where the last one stopped instead of starting from the top
+    public boolean putAll(Collection<Pair<I, V>> entries) {
+        Pair<I, V>[] sortedEntries = entries.toArray(new Pair[0]);
+        //Stable, so among colliding entries the later one still wins, same as calling put in order
+        Arrays.parallelSort(sortedEntries, (e1, e2) -> e1.getL().compareTo(e2.getL()));
+        Node[] finger = newFinger();
+        for (Pair<I, V> entry : sortedEntries) {
+            put(entry.getL(), entry.getR(), finger);
+        }
+        return true;
+    }
+
+    boolean put(I i, V v, Node[] finger) {
+        int h = pickNodeHeight();
+        findPrecursors(i, precursorHeight(h), finger);
+        if (finger[0].getNext(0).containsIndex(i)) {
+            replaceValue(finger, finger[0].getNext(0), v);
             return true;
         }
-        insertNode(precursorNodes, new QTNode<I, V>(i, v, h));
+        insertNode(finger, newNode(i.toLong(), i.getRes(), v, h));
         size++;
         return true;
     }
 
+    //Returns how many of the indexes had a node to remove
+    public int removeAll(Collection<I> indexes) {
+        I[] sortedIndexes = (I[]) indexes.toArray(new Index[0]);
+        Arrays.parallelSort(sortedIndexes);
+        Node[] finger = newFinger();
+        int removed = 0;
+        for (I i : sortedIndexes) {
+            if (remove(i, finger)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    //Unlike remove, redoes the precursors for the node's own index when i only lands inside its range
+    boolean remove(I i, Node[] finger) {
+        return remove(i.toLong(), i.getRes(), finger);
+    }
+
+    boolean remove(long key, int res, Node[] finger) {
+        findPrecursors(key, res, 0, finger);
+        Node<I, V> targetNode = finger[0].getNext(0);
+        if (!targetNode.containsKey(key, res)) {
+            return false;
+        }
+        findPrecursors(targetNode.getKey(), targetNode.getRes(), precursorHeight(targetNode.getMaxHeight()), finger);
+        size--;
+        return deleteNode(finger, targetNode);
+    }
+
     //Should we support removing a value without the index? Means we need to traverse the entire skiplist
     //Node designed to hold more than one object... but for now we treat it as single values
     //It might be useful to return the deleted node instead for the quadtree... but not general usage
@@ -113,33 +398,224 @@ public class Skiplist<I extends Index<I>, V> {
     }
 
     Node[] findPrecursors(Node<I, V> n) {
-        return findPrecursors(n.getIndex(), n.getMaxHeight());
+        return findPrecursors(n.getKey(), n.getRes(), n.getMaxHeight());
     }
 
     //Return an array of Nodes present up to level h that would connect to a Node with Index i... but we don't always know what height we want.
     //The default should be the height of the node we're looking for... which of course we don't know until we find the node. Might need to just track starting from currentMaxHeight then truncate down
     //Does the snaking traversal the whole way when we only need the previous nodes at height h and below
-    //Our sole method of traversal right now, but keeps going even when it encounters our target... ought to split one out
+    //Keeps going even when it encounters our target, since writes need every level's precursor - reads that only want the node go through search
     Node[] findPrecursors(I i, int h) {
+        return findPrecursors(i.toLong(), i.getRes(), h);
+    }
+
+    //The searches all work on the key and resolution themselves (see Index.toLong), so a caller that has a key doesn't have to make an index to look for it
+    Node[] findPrecursors(long key, int res, int h) {
         //If we're inserting a node that would be a new max height...
         int height = Math.max(currentMaxHeight, h);
+        Node[] precursorNodes = new Node[h+1];
+        if (!descendFromDirectory(key, res, h, precursorNodes)) {
+            descend(key, res, height, (height % 2 == 0)? headNode : tailNode, precursorNodes);
+        }
+        return precursorNodes;
+    }
+
+    //A precursor array that findPrecursors can keep reusing across a batch - one slot per level, filled from 0 up to the first null
+    Node[] newFinger() {
+        return new Node[listCeiling];
+    }
+
+    //A finger that lasts across calls - see SkiplistCursor
+    public SkiplistCursor<I, V> newCursor() {
+        return new SkiplistCursor<>(this);
+    }
+
+    //Finger search for batches: with keys coming in sorted, the precursors of the last key are usually only a node or two short of the next one's
+    //So we climb from level 0 to the first level whose precursor still brackets i and descend again from there instead of from the top
+    //Works in any order - a finger that doesn't bracket anything just climbs out and we do the full search. Levels 0 to h are good afterwards
+    Node[] findPrecursors(I i, int h, Node[] finger) {
+        return findPrecursors(i.toLong(), i.getRes(), h, finger);
+    }
+
+    Node[] findPrecursors(long key, int res, int h, Node[] finger) {
+        int l = 0;
+        while (l < listCeiling && finger[l] != null && !brackets(finger[l], l, key)) {
+            l++;
+        }
+        if (l == listCeiling || finger[l] == null) {
+            return searchFromTop(key, res, h, finger);
+        }
+        //Climbed past the directory's level: its entry is the shorter way down
+        if (l > directoryLevel && descendFromDirectory(key, res, h, finger)) {
+            return finger;
+        }
+        if (l > 0) {
+            //Same step past a node holding the key that descend takes between levels
+            Node start = finger[l].getNext(l);
+            if (start.containsKey(key, res)) {
+                start = start.getNext(l);
+            }
+            descend(key, res, l - 1, start, finger);
+        }
+        //Inserting or deleting needs every level up to h; the ones above our bracket were left alone and may have gone stale
+        for (int m = l + 1; m <= h; m++) {
+            if (finger[m] == null || !brackets(finger[m], m, key)) {
+                return searchFromTop(key, res, h, finger);
+            }
+        }
+        return finger;
+    }
+
+    //The read-only traversal: the same snaking descent with nothing recorded and nothing allocated, stopping at the first node on any level whose range holds i
+    //Returns that node, or if there's none, the first node after i (may be the tail) - firstNodeFrom, in other words
+    Node<I, V> search(I i) {
+        return search(i.toLong(), i.getRes());
+    }
+
+    Node<I, V> search(long key, int res) {
+        int height = currentMaxHeight;
+        Node current = (height % 2 == 0) ? headNode : tailNode, next;
+        if (directory != null) {
+            Node start = directory[prefix(key & ~QuadIndex.lowBits(res))];
+            if (start.hasNext(directoryLevel) && start.compareTo(key) < 0 && !start.containsKey(key, res)) {
+                height = directoryLevel;
+                current = start;
+            }
+        }
+        int alternator;
+        while (height >= 0) {
+            alternator = (1 - 2 * (height % 2)); //1 on even heights, -1 on odd
+            //Walk towards i until the next node would be past it, so the level below picks up from the last one short of it (or, on the way back, just past it)
+            while (current.compareTo(key) * alternator < 0 && current.hasNext(height)) {
+                next = current.getNext(height);
+                if (next.containsKey(key, res)) {
+                    return next;
+                }
+                current = next;
+            }
+            height--;
+        }
+        return current;
+    }
+
+    private Node[] searchFromTop(long key, int res, int h, Node[] finger) {
+        int height = Math.max(currentMaxHeight, h);
+        if (!descendFromDirectory(key, res, h, finger)) {
+            descend(key, res, height, (height % 2 == 0)? headNode : tailNode, finger);
+        }
+        return finger;
+    }
+
+    //An express lane past the top of the list for searches that don't start from a finger: one entry per prefix of the key's top bits (2k bits is 4^k quads for a
+    //Quadtree), holding the last node on directoryLevel whose range ends before the prefix's first key. A search comes down from there instead of from the top
+    //directoryLevel is picked for the list as it is, so build it again once the list has grown or shifted a lot. bits 0 turns it off
+    //insertNode and deleteNode keep the entries up to date; a node changing its index in place can leave one short of the last, which only costs a few steps
+    public void buildDirectory(int bits) {
+        int keyBits = 64 - Long.numberOfLeadingZeros(tailNode.maxRange());
+        bits = Math.min(Math.min(bits, keyBits), 24); //16M entries is plenty, and a bigger array is mostly cache misses of its own
+        if (bits <= 0) {
+            directory = null;
+            directoryLevel = 0;
+            return;
+        }
+        Node[] entries = new Node[1 << bits];
+        directoryShift = keyBits - bits;
+        //From an entry, a search walks about half its prefix's nodes on directoryLevel - a third as many on each level up - then comes down about 1.5 steps a level
+        //Searches go where the nodes are, so weigh each prefix by its nodes m: that's 1.5 * level * sum(m) + sum(m^2) / (2 * 3^level). Even levels only,
+        //since they're the ones linking forward. Clustered data packs a lot into a few prefixes and ends up higher than uniform data of the same size
+        long[] counts = new long[entries.length];
+        for (Node<I, V> n = headNode.getNext(0); n != tailNode; n = n.getNext(0)) {
+            counts[prefix(n.minRange())]++;
+        }
+        double nodes = 0, squares = 0, cost, best = Double.MAX_VALUE;
+        for (long m : counts) {
+            nodes += m;
+            squares += (double) m * m;
+        }
+        int level = 0;
+        for (int l = 0; l < listCeiling; l += 2) {
+            cost = 1.5 * l * nodes + squares / (2 * Math.pow(3, l));
+            if (cost < best) {
+                best = cost;
+                level = l;
+            }
+        }
+        Node<I, V> current = headNode;
+        for (int b = 0; b < entries.length; b++) {
+            while (current.getNext(level) != tailNode && Long.compareUnsigned(current.getNext(level).maxRange(), (long) b << directoryShift) < 0) {
+                current = current.getNext(level);
+            }
+            entries[b] = current;
+        }
+        directoryLevel = level;
+        directory = entries;
+    }
+
+    private int prefix(long key) {
+        return (int) (key >>> directoryShift);
+    }
+
+    //Comes down from key's directory entry rather than the top, if there's a directory, precursors are only needed up to its level, and the entry is still linked and
+    //wholly before key's quad. Returns whether it did
+    private boolean descendFromDirectory(long key, int res, int h, Node[] precursorNodes) {
+        if (directory == null || h > directoryLevel) {
+            return false;
+        }
+        Node start = directory[prefix(key & ~QuadIndex.lowBits(res))];
+        if (!start.hasNext(directoryLevel) || start.compareTo(key) >= 0 || start.containsKey(key, res)) {
+            return false;
+        }
+        descend(key, res, directoryLevel, start, precursorNodes);
+        return true;
+    }
+
+    //n just went in on directoryLevel: it's now the last node before every prefix between where it ends and where its next node does
+    private void directoryInsert(Node<I, V> n) {
+        int last = prefix(n.getNext(directoryLevel).maxRange());
+        for (int b = prefix(n.maxRange()) + 1; b <= last && b < directory.length; b++) {
+            directory[b] = n;
+        }
+    }
+
+    //n just came out of directoryLevel, after precursor: its prefixes go back to precursor, and n is cut off on that level so an entry we missed is seen to be stale
+    private void directoryDelete(Node<I, V> precursor, Node<I, V> n) {
+        int last = prefix(n.getNext(directoryLevel).maxRange());
+        for (int b = prefix(precursor.maxRange()) + 1; b <= last && b < directory.length; b++) {
+            if (directory[b] == n) {
+                directory[b] = precursor;
+            }
+        }
+        n.setNext(directoryLevel, null);
+    }
+
+    //Whether p is still key's precursor on level h: the last node below key on even levels, the first above it on odd ones
+    private boolean brackets(Node p, int h, long key) {
+        if (!p.hasNext(h)) {
+            return false;
+        }
+        if (h % 2 == 0) {
+            return p.compareTo(key) < 0 && p.getNext(h).compareTo(key) >= 0;
+        }
+        return p.compareTo(key) > 0 && p.getNext(h).compareTo(key) <= 0;
+    }
+
+    //The snaking traversal itself, from level height down to 0 starting at current. Records a precursor on every level precursorNodes has room for
+    private void descend(long key, int res, int height, Node current, Node[] precursorNodes) {
         int alternator = (1 - 2 * (height % 2)); //1 on even heights, -1 on odd
-        Node current = (alternator == 1)? headNode : tailNode;
         Node next;
-        Node[] precursorNodes = new Node[h+1];
         //Since the link direction alternates on each level, the comparison is reversed
         while (height >= 0) {
             //Guaranteed to terminate when index is in between where current and next nodes are *centered*... but index may fall inside the bounds of current node!
             //Not an issue when limited to one value per node, but for search interval pruning...
-            while (current.compareTo(i) * alternator < 0 && current.hasNext(height)) {
+            while (current.compareTo(key) * alternator < 0 && current.hasNext(height)) {
                 next = current.getNext(height);
-                if (next.compareTo(i) * alternator >= 0) {
-                    if (height <= h) {
+                if (next.compareTo(key) * alternator >= 0) {
+                    if (height < precursorNodes.length) {
                         precursorNodes[height] = current;
                     }
                     //In the case we do have a Node with Index i, we need to go past it or else we start the next level already past our target
                     //Should never increment past our head/tail, as they never contain anything; in the most extreme case where our last Node contains the index, we increment past it into the head/tail node
-                    if (next.containsIndex(i)) {
+                    if (next.containsKey(key, res)) {
                         current = next;
                     }
                 }
@@ -148,30 +624,225 @@ public class Skiplist<I extends Index<I>, V> {
             height--;
             alternator = (1 - 2 * (height % 2));
         }
-        return precursorNodes;
     }
 
     //Is there a point to returning true?
     //This works fine for inserting single nodes, but what if we want to attach a block of them? We could stitch nodes together and use a pseudoblock to connect
+    //Batches go through putAll/removeAll instead, which share the traversal rather than the links
+    //attachNodes may be a finger, longer than the node is tall - only the node's own levels are linked
     protected boolean insertNode(Node[] attachNodes, Node<I, V> n) {
-        for (int i = 0; i < attachNodes.length; i++) {
+        for (int i = 0; i <= n.getMaxHeight(); i++) {
             n.setNext(i, attachNodes[i].getNext(i));
             attachNodes[i].setNext(i, n);
         }
         insertHeightUpdate(n.getMaxHeight());
+        if (directory != null && n.getMaxHeight() >= directoryLevel) {
+            directoryInsert(n);
+        }
+        if (measure != null) {
+            //n splits its precursor's block on its own levels, and above them just joins it
+            Aggregate m = new Aggregate();
+            addMeasures(m, n);
+            for (int h = 2; h <= currentMaxHeight; h += 2) {
+                if (h <= n.getMaxHeight()) {
+                    refreshAggregate(n, h);
+                    refreshAggregate(attachNodes[h], h);
+                }
+                else {
+                    attachNodes[h].getAggregate(h).add(m);
+                }
+            }
+        }
         return true;
     }
 
     //Do we need some sort of sanity check to prevent deleting Nodes that aren't in the skiplist?
+    //A node in slabs goes back to them, so n is no good to the caller afterwards - not even for its key
     protected boolean deleteNode(Node[] detachNodes, Node<I, V> n) {
         for (int i = 0; i <= n.getMaxHeight(); i++) {
             //Potential for out of bounds if we pass a malformed array
             detachNodes[i].setNext(i, n.getNext(i));
         }
+        deletions++;
+        if (directory != null && n.getMaxHeight() >= directoryLevel) {
+            directoryDelete(detachNodes[directoryLevel], n);
+        }
         deleteHeightUpdate(n.getMaxHeight());
+        if (measure != null) {
+            //On n's own levels its block merges into its precursor's; above them, n only leaves one
+            for (int h = 2; h <= currentMaxHeight; h += 2) {
+                if (h <= n.getMaxHeight() || !removeMeasures(detachNodes[h].getAggregate(h), n)) {
+                    refreshAggregate(detachNodes[h], h);
+                }
+            }
+        }
+        if (slabs != null) {
+            slabs.free(n);
+        }
+        return true;
+    }
+
+    //Swaps the value held by n, whose precursors are in precursorNodes (as precursorHeight asks for). Anyone replacing a value in place should come through here
+    void replaceValue(Node[] precursorNodes, Node<I, V> n, V v) {
+        V oldValue = n.setValue(v);
+        if (measure != null) {
+            double oldMeasure = measure.applyAsDouble(oldValue), newMeasure = measure.applyAsDouble(v);
+            Node<I, V> owner;
+            for (int h = 2; h <= currentMaxHeight; h += 2) {
+                owner = (h <= n.getMaxHeight()) ? n : precursorNodes[h];
+                if (owner.getAggregate(h).remove(oldMeasure)) {
+                    owner.getAggregate(h).add(newMeasure);
+                }
+                else {
+                    refreshAggregate(owner, h);
+                }
+            }
+        }
+    }
+
+    //Adds v, at key, to n's bucket; precursorNodes as replaceValue wants them. Buckets change through here and removeValue, so the blocks they're in keep up
+    void addValue(Node[] precursorNodes, Node<I, V> n, long key, V v) {
+        n.addValue(key, v);
+        if (measure != null) {
+            double m = measure.applyAsDouble(v);
+            for (int h = 2; h <= currentMaxHeight; h += 2) {
+                ((h <= n.getMaxHeight()) ? n : precursorNodes[h]).getAggregate(h).add(m);
+            }
+        }
+    }
+
+    V removeValue(Node[] precursorNodes, Node<I, V> n, int j) {
+        V oldValue = n.removeValue(j);
+        if (measure != null) {
+            double m = measure.applyAsDouble(oldValue);
+            Node<I, V> owner;
+            for (int h = 2; h <= currentMaxHeight; h += 2) {
+                owner = (h <= n.getMaxHeight()) ? n : precursorNodes[h];
+                if (!owner.getAggregate(h).remove(m)) {
+                    refreshAggregate(owner, h);
+                }
+            }
+        }
+        return oldValue;
+    }
+
+    private void addMeasures(Aggregate a, Node<I, V> n) {
+        for (int j = 0; j < n.size(); j++) {
+            a.add(measure.applyAsDouble(n.getValue(j)));
+        }
+    }
+
+    //Takes n's values back out of a; false if one couldn't be, leaving a for the caller to add up again
+    private boolean removeMeasures(Aggregate a, Node<I, V> n) {
+        for (int j = 0; j < n.size(); j++) {
+            if (!a.remove(measure.applyAsDouble(n.getValue(j)))) {
+                return false;
+            }
+        }
         return true;
     }
 
+    //How many levels of precursors a write needs: the new node's own, plus every even level below the top while we keep aggregates,
+    //since the node lands in some block on each of them
+    int precursorHeight(int h) {
+        return (measure == null) ? h : Math.max(h, currentMaxHeight);
+    }
+
+    //Starts keeping, on every node and for each even level it reaches, the Aggregate of measure over the values from it up to (not including) its next node on that level
+    //Only even levels, since those are the ones linking forward. Built in one pass over each level; from then on every write refreshes the blocks it touched,
+    //a few steps per even level, which is why it's opt-in. measure must not change for a value while it's in the list
+    public void trackAggregates(ToDoubleFunction<? super V> measure) {
+        this.measure = measure;
+        Node<I, V> n;
+        for (int h = 2; h <= currentMaxHeight; h += 2) {
+            n = headNode;
+            while (n != tailNode) {
+                refreshAggregate(n, h);
+                n = n.getNext(h);
+            }
+        }
+    }
+
+    boolean tracksAggregates() {
+        return measure != null;
+    }
+
+    //Adds up n's block on level h from the blocks on level h - 2 (or the values themselves on level 2), so callers go bottom-up
+    private void refreshAggregate(Node<I, V> n, int h) {
+        Aggregate a = n.getAggregate(h);
+        if (a == null) {
+            a = new Aggregate();
+            n.setAggregate(h, a);
+        }
+        a.clear();
+        Node<I, V> end = n.getNext(h);
+        for (Node<I, V> current = n; current != end; current = current.getNext(h - 2)) {
+            if (h == 2) {
+                addMeasures(a, current);
+            }
+            else {
+                a.add(current.getAggregate(h - 2));
+            }
+        }
+    }
+
+    public Aggregate aggregate(I from, I to) {
+        Aggregate total = new Aggregate();
+        aggregate(from, to, total, search(from));
+        return total;
+    }
+
+    Aggregate aggregate(I from, I to, Node[] finger) {
+        Aggregate total = new Aggregate();
+        aggregate(from, to, total, findPrecursors(from, 0, finger)[0].getNext(0));
+        return total;
+    }
+
+    //Adds every value whose index falls in [from, to] (the same test intervalsGet uses) to total, starting from first, the first node reaching from
+    //Walks forward like intervalsGet, but from each node takes the tallest even level whose block ends inside the range, so a long range is mostly whole blocks
+    //A block ends where its next node starts, so every bucket in it ends inside too; only a node at either end of the range goes value by value
+    void aggregate(I from, I to, Aggregate total, Node<I, V> first) {
+        if (measure == null) {
+            throw new IllegalStateException("Not tracking aggregates");
+        }
+        Node<I, V> current = first;
+        int h, ceiling = listCeiling; //Once a level's block overshoots, every later one on that level will too
+        Pair<I, I> range = new Pair<>(from, to);
+        if (current.compareTo(from) < 0) {
+            addMeasures(total, current, range);
+            current = current.getNext(0);
+        }
+        while (current.compareTo(to) <= 0) {
+            h = Math.min(current.getMaxHeight(), ceiling) & ~1;
+            while (h >= 2 && current.getNext(h).compareTo(to) > 0) {
+                h -= 2;
+                ceiling = h;
+            }
+            if (h >= 2) {
+                total.add(current.getAggregate(h));
+                current = current.getNext(h);
+            }
+            else {
+                addMeasures(total, current, range);
+                current = current.getNext(0);
+            }
+        }
+    }
+
+    private void addMeasures(Aggregate a, Node<I, V> n, Pair<I, I> range) {
+        if (!n.isBucket()) {
+            if (n.compareTo(range.getL()) >= 0 && n.compareTo(range.getR()) <= 0) {
+                a.add(measure.applyAsDouble(n.getValue()));
+            }
+            return;
+        }
+        for (int j = 0; j < n.size(); j++) {
+            if (inInterval(n.getKey(j), range)) {
+                a.add(measure.applyAsDouble(n.getValue(j)));
+            }
+        }
+    }
+
     protected int pickNodeHeight() {
         //Aims for 1:3 ratio between each layer based on current situation. Picks the highest level that wouldn't violate the 3:1 ratio among lower levels
         //Does nothing for how evenly they are distributed across the range of our index. On the average this is fine, but it could rarely be an issue
@@ -242,10 +913,88 @@ public class Skiplist<I extends Index<I>, V> {
         System.out.print(stringBuilder.toString());
     }
 
+    //intervalsVisit turned inside out: the loop state lives in fields so the walk can stop after any value and pick up again
+    //Splits by handing off the first half of the intervals it hasn't started on, so parallel streams get the same kind of chunks as the parallel intervalsGet
+    class IntervalSpliterator implements Spliterator<V> {
+        private final List<Pair<I, I>> intervals;
+        private int intervalIndex, end;
+        private Node<I, V> currentNode = headNode;
+        private final Node[] finger = newFinger();
+        private boolean inInterval = false; //Whether currentNode has already been placed for intervals.get(intervalIndex)
+        private int valueIndex; //How far into currentNode's values we are for this interval
+
+        IntervalSpliterator(List<Pair<I, I>> intervals, int start, int end) {
+            this.intervals = intervals;
+            intervalIndex = start;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super V> action) {
+            Pair<I, I> interval;
+            Node<I, V> n;
+            boolean inside;
+            int j;
+            while (intervalIndex < end) {
+                interval = intervals.get(intervalIndex);
+                if (!inInterval) {
+                    if (endsBefore(currentNode, interval.getL())) {
+                        currentNode = firstNodeFrom(interval.getL(), finger);
+                    }
+                    inInterval = true;
+                    valueIndex = 0;
+                }
+                n = currentNode;
+                while (valueIndex < n.size()) {
+                    j = valueIndex++;
+                    inside = n.isBucket() ? inInterval(n.getKey(j), interval) : n.compareTo(interval.getL()) >= 0 && n.compareTo(interval.getR()) <= 0;
+                    if (inside) {
+                        action.accept(n.getValue(j));
+                        return true;
+                    }
+                }
+                //Stay on a node reaching past the interval, since it may reach into the next one too
+                if (reachesPast(n, interval.getR())) {
+                    intervalIndex++;
+                    inInterval = false;
+                }
+                else {
+                    currentNode = n.getNext();
+                    valueIndex = 0;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<V> trySplit() {
+            //Ordered, so what we hand off has to be everything before what we keep - only possible while we're between intervals
+            if (inInterval || end - intervalIndex < 2) {
+                return null;
+            }
+            int mid = (intervalIndex + end) >>> 1;
+            Spliterator<V> prefix = new IntervalSpliterator(intervals, intervalIndex, mid);
+            intervalIndex = mid;
+            currentNode = headNode;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED;
+        }
+    }
+
     class HeadNode extends Node<I, V> {
         //One of the entry/end nodes as we navigate the skiplist. We should probably make all this non-public
         ArrayList<Node> nextNodes; //Started with ArrayList thinking we'd resize/populate as needed, but perhaps should be just an array
         I headIndex;
+        Aggregate[] aggregates = new Aggregate[listCeiling / 2];
         HeadNode(I head) {
             headIndex = head;
             nextNodes = new ArrayList<>(listCeiling);
@@ -259,12 +1008,12 @@ public class Skiplist<I extends Index<I>, V> {
         }
 
         @Override
-        boolean overlapsIndex(I i) {
-            return (i.minRange() < headIndex.maxRange());
+        boolean overlapsKey(long key, int res) {
+            return Long.compareUnsigned(key & ~QuadIndex.lowBits(res), maxRange()) < 0;
         }
 
         @Override
-        public boolean containsIndex(Index i) {
+        boolean containsKey(long key, int res) {
             return false;
         }
 
@@ -295,10 +1044,22 @@ public class Skiplist<I extends Index<I>, V> {
             return nextNodes.get(0);
         }
 
-        //Would be nice if there was a way to do this without casting
         @Override
-        public I getIndex() {
-            return (I) headIndex;
+        long getKey() {
+            return headIndex.toLong();
+        }
+
+        @Override
+        int getRes() {
+            return headIndex.getRes();
+        }
+
+        @Override
+        void setKey(long key) {
+        }
+
+        @Override
+        void setRes(int res) {
         }
 
         @Override
@@ -316,13 +1077,56 @@ public class Skiplist<I extends Index<I>, V> {
             return null;
         }
 
+        @Override
+        int size() {
+            return 0;
+        }
+
+        @Override
+        boolean isBucket() {
+            return false;
+        }
+
+        @Override
+        V getValue(int j) {
+            return null;
+        }
+
+        @Override
+        long getKey(int j) {
+            return 0;
+        }
+
+        @Override
+        void makeBucket(long key) {
+        }
+
+        @Override
+        void addValue(long key, V v) {
+        }
+
+        @Override
+        V removeValue(int j) {
+            return null;
+        }
+
+        @Override
+        Aggregate getAggregate(int h) {
+            return aggregates[h / 2 - 1];
+        }
+
+        @Override
+        void setAggregate(int h, Aggregate a) {
+            aggregates[h / 2 - 1] = a;
+        }
+
         @Override
         public int compareTo(Node n) {
             return -1;
         }
 
         @Override
-        public int compareTo(I i) {
+        int compareTo(long key) {
             return -1;
         }
     }
@@ -346,7 +1150,7 @@ public class Skiplist<I extends Index<I>, V> {
         }
 
         @Override
-        public int compareTo(I i) {
+        int compareTo(long key) {
             return 1;
         }
 
@@ -356,12 +1160,12 @@ public class Skiplist<I extends Index<I>, V> {
         }
 
         @Override
-        boolean overlapsIndex(I i) {
-            return (i.maxRange() > tailIndex.minRange());
+        boolean overlapsKey(long key, int res) {
+            return Long.compareUnsigned(key | QuadIndex.lowBits(res), minRange()) > 0;
         }
 
         @Override
-        public boolean containsIndex(Index i) {
+        boolean containsKey(long key, int res) {
             return false;
         }
 
@@ -393,8 +1197,21 @@ public class Skiplist<I extends Index<I>, V> {
         }
 
         @Override
-        public I getIndex() {
-            return (I) tailIndex;
+        long getKey() {
+            return tailIndex.toLong();
+        }
+
+        @Override
+        int getRes() {
+            return tailIndex.getRes();
+        }
+
+        @Override
+        void setKey(long key) {
+        }
+
+        @Override
+        void setRes(int res) {
         }
 
         @Override
@@ -412,6 +1229,49 @@ public class Skiplist<I extends Index<I>, V> {
         V setValue(V v) {
             return null;
         }
+
+        @Override
+        int size() {
+            return 0;
+        }
+
+        @Override
+        boolean isBucket() {
+            return false;
+        }
+
+        @Override
+        V getValue(int j) {
+            return null;
+        }
+
+        @Override
+        long getKey(int j) {
+            return 0;
+        }
+
+        @Override
+        void makeBucket(long key) {
+        }
+
+        @Override
+        void addValue(long key, V v) {
+        }
+
+        @Override
+        V removeValue(int j) {
+            return null;
+        }
+
+        //Every block ends at or before the tail, so it never has one of its own
+        @Override
+        Aggregate getAggregate(int h) {
+            return null;
+        }
+
+        @Override
+        void setAggregate(int h, Aggregate a) {
+        }
     }
 
     //The index for our head/tail implements Index<I>, meaning it can be compared to whatever implementation of Index used to construct the skiplist
@@ -433,12 +1293,12 @@ public class Skiplist<I extends Index<I>, V> {
         }
 
         @Override
-        public int minRange() {
+        public long minRange() {
             return 0;
         }
 
         @Override
-        public int maxRange() {
+        public long maxRange() {
             return 0;
         }
 
@@ -446,6 +1306,16 @@ public class Skiplist<I extends Index<I>, V> {
         public boolean isDivisible() {
             return false;
         }
+
+        @Override
+        public long toLong() {
+            return 0;
+        }
+
+        @Override
+        public int getRes() {
+            return 0;
+        }
     }
 
     class TailIndex implements Index<I> {
@@ -465,18 +1335,28 @@ public class Skiplist<I extends Index<I>, V> {
         }
 
         @Override
-        public int minRange() {
-            return 0xFFFFFFFF;
+        public long minRange() {
+            return 0xFFFFFFFFFFFFFFFFL;
         }
 
         @Override
-        public int maxRange() {
-            return 0xFFFFFFFF;
+        public long maxRange() {
+            return 0xFFFFFFFFFFFFFFFFL;
         }
 
         @Override
         public boolean isDivisible() {
             return false;
         }
+
+        @Override
+        public long toLong() {
+            return 0xFFFFFFFFFFFFFFFFL;
+        }
+
+        @Override
+        public int getRes() {
+            return 0;
+        }
     }
 }
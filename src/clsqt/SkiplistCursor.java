@@ -0,0 +1,59 @@
+package clsqt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+//A finger that lasts from one search to the next: it keeps the precursor towers of the last key it was asked about, so the next search climbs from level 0
+//only until a precursor brackets the new key and comes down from there (see Skiplist.findPrecursors with a finger) - O(log d) in the distance d between
+//the two keys, instead of a descent from the top every time. Pays off when searches stay close together: sweeps, neighboring viewports, sorted batches
+//Not thread-safe - one per thread, which is what Quadtree does. Reads only; writes take their own fingers
+public class SkiplistCursor<I extends Index<I>, V> {
+    private final Skiplist<I, V> skiplist;
+    private final Node[] finger;
+    private long deletions; //The skiplist's count when we last looked - a node unlinked since may still be in the finger
+
+    SkiplistCursor(Skiplist<I, V> skiplist) {
+        this.skiplist = skiplist;
+        finger = skiplist.newFinger();
+        deletions = skiplist.deletions;
+    }
+
+    Skiplist<I, V> getSkiplist() {
+        return skiplist;
+    }
+
+    //The finger, emptied first if the skiplist has lost a node since we last used it: an unlinked node still links into the list and could pass for a precursor
+    //Insertions don't matter, since every level is checked to still bracket the key before it's used
+    Node[] finger() {
+        if (deletions != skiplist.deletions) {
+            Arrays.fill(finger, null);
+            deletions = skiplist.deletions;
+        }
+        return finger;
+    }
+
+    //Skiplist.firstNodeFrom, from wherever the last search left off
+    Node<I, V> seek(I i) {
+        return skiplist.firstNodeFrom(i, finger());
+    }
+
+    public V get(I i) {
+        return skiplist.get(i, finger());
+    }
+
+    public ArrayList<V> intervalsGet(List<Pair<I, I>> intervals) {
+        ArrayList<V> returnList = new ArrayList<V>();
+        intervalsVisit(intervals, returnList::add);
+        return returnList;
+    }
+
+    public boolean intervalsVisit(List<Pair<I, I>> intervals, Predicate<? super V> visitor) {
+        return skiplist.intervalsVisit(intervals, visitor, finger());
+    }
+
+    public Aggregate aggregate(I from, I to) {
+        return skiplist.aggregate(from, to, finger());
+    }
+}
@@ -0,0 +1,419 @@
+package clsqt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+//Node storage for a skiplist that keeps the nodes' own fields out of the Java heap: keys, resolutions, heights, bucket sizes and links sit in direct buffers,
+//one column per field, in slabs of SLAB_NODES nodes addressed by int slot. Links for levels 1 and up go in tower slabs of their own, since two thirds of nodes have none
+//What has to be an object stays on the heap: the values, in an Object[] per slab alongside the columns, a bucket's keys and values, aggregates, and one small handle
+//per slot - the skiplist tells nodes apart by identity (fingers, the directory, cursors), so a slot keeps the same handle for as long as the store lives
+//A removed node's slot, handle and tower go on free lists, and are handed out again before the store grows
+class SlabStore<I extends Index<I>, V> {
+    static final int SLAB_BITS = 16, SLAB_NODES = 1 << SLAB_BITS, SLAB_MASK = SLAB_NODES - 1;
+    static final int TOWER_BITS = 18, TOWER_INTS = 1 << TOWER_BITS, TOWER_MASK = TOWER_INTS - 1;
+    static final int NULL = -1, HEAD = -2, TAIL = -3; //Links that aren't slots
+    private LongBuffer[] keys = new LongBuffer[0];
+    private IntBuffer[] links = new IntBuffer[0]; //Level 0
+    private IntBuffer[] towers = new IntBuffer[0]; //Where levels 1 and up are, or NULL. A free slot keeps the next free one here instead
+    private IntBuffer[] sizes = new IntBuffer[0]; //Only for buckets
+    private ByteBuffer[] resolutions = new ByteBuffer[0], heights = new ByteBuffer[0];
+    private Object[][] values = new Object[0][]; //A single value, or null for a bucket
+    private long[][][] bucketKeys = new long[0][][]; //Per slab, only allocated once it holds a bucket
+    private Object[][][] bucketValues = new Object[0][][];
+    private Aggregate[][][] aggregates = new Aggregate[0][][]; //Per slab, only allocated once the skiplist keeps aggregates
+    private SlabNode[][] handles = (SlabNode[][]) new SlabStore.SlabNode[0][];
+    private IntBuffer[] towerSlabs = new IntBuffer[0];
+    private int slots = 0; //Handed out so far, free or not
+    private int freeSlot = NULL;
+    private int towerEnd = 0; //The first tower int never handed out, as (slab << TOWER_BITS) | offset
+    private final int[] freeTowers = new int[32]; //By height, linked through each tower's first int
+    private Node<I, V> head, tail;
+
+    SlabStore() {
+        Arrays.fill(freeTowers, NULL);
+    }
+
+    //The skiplist's ends, which links can point at without being in a slab
+    void attach(Node<I, V> head, Node<I, V> tail) {
+        this.head = head;
+        this.tail = tail;
+    }
+
+    Node<I, V> newNode(long key, int res, V v, int h) {
+        int slot = allocateSlot(key, res, h);
+        values[slot >>> SLAB_BITS][slot & SLAB_MASK] = v;
+        return handle(slot);
+    }
+
+    //A bucket of the first size values and keys, which we keep
+    Node<I, V> newBucket(long key, int res, long[] keys, Object[] values, int size, int h) {
+        int slot = allocateSlot(key, res, h);
+        setBucket(slot, keys, values);
+        sizes[slot >>> SLAB_BITS].put(slot & SLAB_MASK, size);
+        return handle(slot);
+    }
+
+    boolean owns(Node<I, V> n) {
+        return n instanceof SlabStore.SlabNode && ((SlabNode) n).store() == this;
+    }
+
+    //n has been unlinked: everything it held is let go, and its links cleared so a finger still holding it can't take it for a precursor
+    void free(Node<I, V> n) {
+        int slot = ((SlabNode) n).slot, slab = slot >>> SLAB_BITS, offset = slot & SLAB_MASK;
+        int h = heights[slab].get(offset), tower = towers[slab].get(offset);
+        if (tower != NULL) {
+            setTowerInt(tower, 0, freeTowers[h]);
+            freeTowers[h] = tower;
+        }
+        values[slab][offset] = null;
+        setBucket(slot, null, null);
+        if (aggregates[slab] != null) {
+            aggregates[slab][offset] = null;
+        }
+        heights[slab].put(offset, (byte) 0);
+        links[slab].put(offset, NULL);
+        towers[slab].put(offset, freeSlot);
+        freeSlot = slot;
+    }
+
+    //What the slabs take out of the heap, whether in use or not
+    long offHeapBytes() {
+        return (long) keys.length * SLAB_NODES * (Long.BYTES + 3 * Integer.BYTES + 2) + (long) towerSlabs.length * TOWER_INTS * Integer.BYTES;
+    }
+
+    private int allocateSlot(long key, int res, int h) {
+        int slot = freeSlot;
+        if (slot != NULL) {
+            freeSlot = towers[slot >>> SLAB_BITS].get(slot & SLAB_MASK);
+        }
+        else {
+            if ((slots & SLAB_MASK) == 0) {
+                addSlab();
+            }
+            slot = slots++;
+        }
+        int slab = slot >>> SLAB_BITS, offset = slot & SLAB_MASK, tower = (h > 0) ? allocateTower(h) : NULL;
+        keys[slab].put(offset, key);
+        resolutions[slab].put(offset, (byte) res);
+        heights[slab].put(offset, (byte) h);
+        sizes[slab].put(offset, 0);
+        links[slab].put(offset, NULL);
+        towers[slab].put(offset, tower);
+        for (int l = 1; l <= h; l++) {
+            setTowerInt(tower, l - 1, NULL);
+        }
+        return slot;
+    }
+
+    private void addSlab() {
+        int slab = keys.length;
+        keys = Arrays.copyOf(keys, slab + 1);
+        links = Arrays.copyOf(links, slab + 1);
+        towers = Arrays.copyOf(towers, slab + 1);
+        sizes = Arrays.copyOf(sizes, slab + 1);
+        resolutions = Arrays.copyOf(resolutions, slab + 1);
+        heights = Arrays.copyOf(heights, slab + 1);
+        values = Arrays.copyOf(values, slab + 1);
+        bucketKeys = Arrays.copyOf(bucketKeys, slab + 1);
+        bucketValues = Arrays.copyOf(bucketValues, slab + 1);
+        aggregates = Arrays.copyOf(aggregates, slab + 1);
+        handles = Arrays.copyOf(handles, slab + 1);
+        keys[slab] = direct(SLAB_NODES * Long.BYTES).asLongBuffer();
+        links[slab] = direct(SLAB_NODES * Integer.BYTES).asIntBuffer();
+        towers[slab] = direct(SLAB_NODES * Integer.BYTES).asIntBuffer();
+        sizes[slab] = direct(SLAB_NODES * Integer.BYTES).asIntBuffer();
+        resolutions[slab] = direct(SLAB_NODES);
+        heights[slab] = direct(SLAB_NODES);
+        values[slab] = new Object[SLAB_NODES];
+        handles[slab] = (SlabNode[]) new SlabStore.SlabNode[SLAB_NODES];
+    }
+
+    private static ByteBuffer direct(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    //Room for levels 1 to h, from the free list for that height if it has one. A tower never straddles two slabs, so the end of one may go unused
+    private int allocateTower(int h) {
+        int tower = freeTowers[h];
+        if (tower != NULL) {
+            freeTowers[h] = towerInt(tower, 0);
+            return tower;
+        }
+        if ((towerEnd & TOWER_MASK) + h > TOWER_INTS) {
+            towerEnd = ((towerEnd >>> TOWER_BITS) + 1) << TOWER_BITS;
+        }
+        if ((towerEnd >>> TOWER_BITS) == towerSlabs.length) {
+            towerSlabs = Arrays.copyOf(towerSlabs, towerSlabs.length + 1);
+            towerSlabs[towerSlabs.length - 1] = direct(TOWER_INTS * Integer.BYTES).asIntBuffer();
+        }
+        tower = towerEnd;
+        towerEnd += h;
+        return tower;
+    }
+
+    private int towerInt(int tower, int i) {
+        return towerSlabs[tower >>> TOWER_BITS].get((tower & TOWER_MASK) + i);
+    }
+
+    private void setTowerInt(int tower, int i, int value) {
+        towerSlabs[tower >>> TOWER_BITS].put((tower & TOWER_MASK) + i, value);
+    }
+
+    private void setBucket(int slot, long[] keys, Object[] values) {
+        int slab = slot >>> SLAB_BITS;
+        if (bucketKeys[slab] == null) {
+            if (keys == null) {
+                return;
+            }
+            bucketKeys[slab] = new long[SLAB_NODES][];
+            bucketValues[slab] = new Object[SLAB_NODES][];
+        }
+        bucketKeys[slab][slot & SLAB_MASK] = keys;
+        bucketValues[slab][slot & SLAB_MASK] = values;
+    }
+
+    private SlabNode handle(int slot) {
+        SlabNode[] slabHandles = handles[slot >>> SLAB_BITS];
+        if (slabHandles[slot & SLAB_MASK] == null) {
+            slabHandles[slot & SLAB_MASK] = new SlabNode(slot);
+        }
+        return slabHandles[slot & SLAB_MASK];
+    }
+
+    private Node<I, V> node(int link) {
+        if (link >= 0) {
+            return handles[link >>> SLAB_BITS][link & SLAB_MASK];
+        }
+        return (link == HEAD) ? head : (link == TAIL) ? tail : null;
+    }
+
+    private int link(Node<I, V> n) {
+        if (n == null) {
+            return NULL;
+        }
+        return (n == head) ? HEAD : (n == tail) ? TAIL : ((SlabNode) n).slot;
+    }
+
+    //Everything about the node is read from the columns by slot; the handle itself holds nothing else
+    class SlabNode extends Node<I, V> {
+        final int slot;
+
+        SlabNode(int slot) {
+            this.slot = slot;
+        }
+
+        SlabStore<I, V> store() {
+            return SlabStore.this;
+        }
+
+        private int slab() {
+            return slot >>> SLAB_BITS;
+        }
+
+        private int offset() {
+            return slot & SLAB_MASK;
+        }
+
+        private long[] bucketKeys() {
+            long[][] slabKeys = bucketKeys[slab()];
+            return (slabKeys == null) ? null : slabKeys[offset()];
+        }
+
+        private Object[] bucketValues() {
+            return bucketValues[slab()][offset()];
+        }
+
+        @Override
+        int compareTo(long key) {
+            return Long.compareUnsigned(getKey(), key);
+        }
+
+        @Override
+        long getKey() {
+            return keys[slab()].get(offset());
+        }
+
+        @Override
+        int getRes() {
+            return resolutions[slab()].get(offset());
+        }
+
+        @Override
+        void setKey(long key) {
+            keys[slab()].put(offset(), key);
+        }
+
+        @Override
+        void setRes(int res) {
+            resolutions[slab()].put(offset(), (byte) res);
+        }
+
+        @Override
+        public String toString() {
+            if (!isBucket()) {
+                return Long.toUnsignedString(getKey()) + "/" + getRes() + "=" + getValue();
+            }
+            StringBuilder stringBuilder = new StringBuilder(Long.toUnsignedString(getKey()) + "/" + getRes() + "=[");
+            for (int j = 0; j < size(); j++) {
+                stringBuilder.append((j == 0) ? "" : ", ").append(getValue(j));
+            }
+            return stringBuilder.append("]").toString();
+        }
+
+        @Override
+        int getMaxHeight() {
+            return heights[slab()].get(offset());
+        }
+
+        @Override
+        boolean containsKey(long key, int res) {
+            return Long.compareUnsigned(minRange(), key & ~QuadIndex.lowBits(res)) <= 0 && Long.compareUnsigned(maxRange(), key | QuadIndex.lowBits(res)) >= 0;
+        }
+
+        @Override
+        boolean overlapsKey(long key, int res) {
+            return !(Long.compareUnsigned(maxRange(), key & ~QuadIndex.lowBits(res)) < 0 || Long.compareUnsigned(minRange(), key | QuadIndex.lowBits(res)) > 0);
+        }
+
+        private int linkAt(int h) {
+            return (h == 0) ? links[slab()].get(offset()) : towerInt(towers[slab()].get(offset()), h - 1);
+        }
+
+        @Override
+        boolean hasNext(int h) {
+            return h <= getMaxHeight() && linkAt(h) != NULL;
+        }
+
+        @Override
+        boolean isEmpty() {
+            return size() == 0;
+        }
+
+        @Override
+        Node setNext(int h, Node n) {
+            Node oldNextNode = getNext(h);
+            if (h == 0) {
+                links[slab()].put(offset(), link(n));
+            }
+            else {
+                setTowerInt(towers[slab()].get(offset()), h - 1, link(n));
+            }
+            return oldNextNode;
+        }
+
+        @Override
+        Node<I, V> getNext(int h) {
+            return node(linkAt(h));
+        }
+
+        @Override
+        Node<I, V> getNext() {
+            return node(links[slab()].get(offset()));
+        }
+
+        @Override
+        Aggregate getAggregate(int h) {
+            Aggregate[][] slabAggregates = aggregates[slab()];
+            if (slabAggregates == null || slabAggregates[offset()] == null) {
+                return null;
+            }
+            return slabAggregates[offset()][h / 2 - 1];
+        }
+
+        @Override
+        void setAggregate(int h, Aggregate a) {
+            if (aggregates[slab()] == null) {
+                aggregates[slab()] = new Aggregate[SLAB_NODES][];
+            }
+            if (aggregates[slab()][offset()] == null) {
+                aggregates[slab()][offset()] = new Aggregate[getMaxHeight() / 2];
+            }
+            aggregates[slab()][offset()][h / 2 - 1] = a;
+        }
+
+        @Override
+        V getValue() {
+            return isBucket() ? (V) bucketValues()[0] : (V) values[slab()][offset()];
+        }
+
+        @Override
+        V setValue(V v) {
+            V oldValue = getValue();
+            if (isBucket()) {
+                bucketValues()[0] = v;
+            }
+            else {
+                values[slab()][offset()] = v;
+            }
+            return oldValue;
+        }
+
+        @Override
+        int size() {
+            if (!isBucket()) {
+                return (values[slab()][offset()] == null) ? 0 : 1;
+            }
+            return sizes[slab()].get(offset());
+        }
+
+        @Override
+        boolean isBucket() {
+            return bucketKeys() != null;
+        }
+
+        @Override
+        V getValue(int j) {
+            return isBucket() ? (V) bucketValues()[j] : (V) values[slab()][offset()];
+        }
+
+        @Override
+        long getKey(int j) {
+            return bucketKeys()[j];
+        }
+
+        @Override
+        void makeBucket(long key) {
+            setBucket(slot, new long[] {key, 0}, new Object[] {values[slab()][offset()], null});
+            sizes[slab()].put(offset(), 1);
+            values[slab()][offset()] = null;
+        }
+
+        @Override
+        void addValue(long key, V v) {
+            long[] keys = bucketKeys();
+            Object[] values = bucketValues();
+            int size = size();
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                setBucket(slot, keys, values);
+            }
+            int j = size;
+            //Buckets are small, so shifting beats a search
+            while (j > 0 && Long.compareUnsigned(keys[j - 1], key) > 0) {
+                keys[j] = keys[j - 1];
+                values[j] = values[j - 1];
+                j--;
+            }
+            keys[j] = key;
+            values[j] = v;
+            sizes[slab()].put(offset(), size + 1);
+        }
+
+        @Override
+        V removeValue(int j) {
+            long[] keys = bucketKeys();
+            Object[] values = bucketValues();
+            int size = size();
+            V oldValue = (V) values[j];
+            System.arraycopy(keys, j + 1, keys, j, size - j - 1);
+            System.arraycopy(values, j + 1, values, j, size - j - 1);
+            values[size - 1] = null;
+            sizes[slab()].put(offset(), size - 1);
+            return oldValue;
+        }
+    }
+}
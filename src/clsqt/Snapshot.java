@@ -0,0 +1,203 @@
+package clsqt;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.ToDoubleFunction;
+
+//A whole Quadtree on disk, nodes in key order with their heights, so loading it back is one linear relink instead of an add per point
+//Layout, little-endian:
+//  header:  magic, version, curve, maxRes, bucketSize (ints), node count, value count (longs)
+//  blocks:  byte length, node count (ints), then the nodes
+//  node:    key (long), res, height (bytes), size (int), then its value - or for a bucket, each value after its key (long)
+//Blocks are written one at a time through a direct buffer, and each is mapped on its own when read, so a file well past 2GB is no trouble
+//Values are objects, so zero-copy isn't on the table: every one is decoded, but straight off the mapped pages and in order
+class Snapshot {
+    private static final int MAGIC = 0x51534C43; //"CLSQ"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 5 * Integer.BYTES + 2 * Long.BYTES;
+    private static final int BLOCK_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int NODE_HEADER_BYTES = Long.BYTES + 2 + Integer.BYTES;
+    private static final int BLOCK_BYTES = 1 << 24;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    //Writes to a file next to file first and moves it over file once it's all on disk, so file is always either the old snapshot or the new one
+    //The tree mustn't change while we're at it
+    static <V extends Cartesian> void write(Quadtree<V> qt, Path file, ValueCodec<? super V> codec) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteBuffer standard = ByteBuffer.allocateDirect(BLOCK_BYTES).order(ORDER), block = standard, header = ByteBuffer.allocate(HEADER_BYTES).order(ORDER);
+        long nodes = 0, values = 0;
+        int blockNodes = 0, nodeBytes;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            channel.position(HEADER_BYTES);
+            block.position(BLOCK_HEADER_BYTES);
+            for (Node<QuadIndex, V> n = qt.skiplist.firstNodeFrom(qt.origin.newIndex(0L, 0)); n.hasNext(0); n = n.getNext(0)) {
+                nodeBytes = nodeBytes(n, codec);
+                if (nodeBytes > block.remaining() && blockNodes > 0) {
+                    flush(channel, block, blockNodes);
+                    blockNodes = 0;
+                    block = standard;
+                }
+                //Only a bucket in a single cell can outgrow a block - it gets one of its own
+                if (nodeBytes > block.remaining()) {
+                    block = ByteBuffer.allocateDirect(BLOCK_HEADER_BYTES + nodeBytes).order(ORDER).position(BLOCK_HEADER_BYTES);
+                }
+                writeNode(n, block, codec);
+                blockNodes++;
+                nodes++;
+                values += n.size();
+            }
+            if (blockNodes > 0) {
+                flush(channel, block, blockNodes);
+            }
+            header.putInt(MAGIC).putInt(VERSION).putInt((qt.origin instanceof HilbertIndex) ? 1 : 0).putInt(qt.maxRes).putInt(qt.bucketSize).putLong(nodes).putLong(values).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static <V> int nodeBytes(Node<QuadIndex, V> n, ValueCodec<? super V> codec) {
+        int bytes = NODE_HEADER_BYTES;
+        if (n.size() == 1) {
+            return bytes + codec.size(n.getValue());
+        }
+        for (int j = 0; j < n.size(); j++) {
+            bytes += Long.BYTES + codec.size(n.getValue(j));
+        }
+        return bytes;
+    }
+
+    //A bucket that's down to one value goes out as a single - they're the same to everything but the node itself
+    private static <V> void writeNode(Node<QuadIndex, V> n, ByteBuffer out, ValueCodec<? super V> codec) {
+        out.putLong(n.getKey()).put((byte) n.getRes()).put((byte) n.getMaxHeight()).putInt(n.size());
+        if (n.size() == 1) {
+            codec.write(n.getValue(), out);
+            return;
+        }
+        for (int j = 0; j < n.size(); j++) {
+            out.putLong(n.getKey(j));
+            codec.write(n.getValue(j), out);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer block, int blockNodes) throws IOException {
+        block.putInt(0, block.position() - BLOCK_HEADER_BYTES).putInt(Integer.BYTES, blockNodes).flip();
+        while (block.hasRemaining()) {
+            channel.write(block);
+        }
+        block.clear().position(BLOCK_HEADER_BYTES);
+    }
+
+    static <V extends Cartesian> Quadtree<V> read(Path file, ValueCodec<V> codec) throws Exception {
+        return read(file, codec, null);
+    }
+
+    //measure isn't saved - it's code - so a tree that kept aggregates needs it again here. They're added up afterwards in one pass per level
+    static <V extends Cartesian> Quadtree<V> read(Path file, ValueCodec<V> codec, ToDoubleFunction<? super V> measure) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ORDER);
+            readFully(channel, header, 0);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a quadtree snapshot: " + file);
+            }
+            Quadtree.Curve curve = (header.getInt() == 1) ? Quadtree.Curve.HILBERT : Quadtree.Curve.MORTON;
+            int maxRes = header.getInt(), bucketSize = header.getInt();
+            long nodes = header.getLong();
+            Quadtree<V> qt = (measure == null) ? new Quadtree<>(maxRes, curve, bucketSize) : new Quadtree<>(maxRes, curve, bucketSize, measure);
+            NodeReader<V> reader = new NodeReader<>(channel, codec);
+            try {
+                qt.relink(reader);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (reader.read != nodes) {
+                throw new IOException("Snapshot cut short: " + reader.read + " of " + nodes + " nodes in " + file);
+            }
+            return qt;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Snapshot cut short");
+            }
+        }
+        buffer.flip();
+    }
+
+    //Hands the nodes over one at a time, mapping the next block whenever the last one runs out
+    private static class NodeReader<V> implements Iterator<Node<QuadIndex, V>> {
+        private final FileChannel channel;
+        private final ValueCodec<V> codec;
+        private final ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_BYTES).order(ORDER);
+        private MappedByteBuffer block;
+        private long position = HEADER_BYTES, read = 0;
+        private int blockNodes = 0;
+
+        NodeReader(FileChannel channel, ValueCodec<V> codec) {
+            this.channel = channel;
+            this.codec = codec;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (blockNodes > 0) {
+                return true;
+            }
+            try {
+                if (position >= channel.size()) {
+                    return false;
+                }
+                blockHeader.clear();
+                readFully(channel, blockHeader, position);
+                int bytes = blockHeader.getInt();
+                blockNodes = blockHeader.getInt();
+                position += BLOCK_HEADER_BYTES;
+                block = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+                block.order(ORDER);
+                position += bytes;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return blockNodes > 0;
+        }
+
+        @Override
+        public Node<QuadIndex, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            long key = block.getLong();
+            int res = block.get(), h = block.get(), size = block.getInt();
+            Node<QuadIndex, V> n;
+            if (size == 1) {
+                n = new QTNode<>(key, res, codec.read(block), h);
+            }
+            else {
+                long[] keys = new long[size];
+                Object[] values = new Object[size];
+                for (int j = 0; j < size; j++) {
+                    keys[j] = block.getLong();
+                    values[j] = codec.read(block);
+                }
+                n = new QTNode<>(key, res, keys, values, size, h);
+            }
+            blockNodes--;
+            read++;
+            return n;
+        }
+    }
+}
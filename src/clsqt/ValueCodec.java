@@ -0,0 +1,38 @@
+package clsqt;
+
+import java.nio.ByteBuffer;
+
+//How values go to and from bytes, for whatever keeps a tree outside the heap - snapshots (see Snapshot) and the like
+//A value's position is in its key already, but the codec still has to write it: V is whatever the caller made it, and read has to hand the same back
+public interface ValueCodec<V> {
+    //Points as their two coordinates
+    ValueCodec<Point> POINTS = new ValueCodec<Point>() {
+        @Override
+        public int size(Point p) {
+            return 2 * Integer.BYTES;
+        }
+
+        @Override
+        public void write(Point p, ByteBuffer out) {
+            out.putInt(p.getX()).putInt(p.getY());
+        }
+
+        @Override
+        public Point read(ByteBuffer in) {
+            return new Point(in.getInt(), in.getInt());
+        }
+
+        @Override
+        public Point moved(Point p, int x, int y) {
+            p.moveTo(x, y);
+            return p;
+        }
+    };
+
+    int size(V v); //Exactly how many bytes write will put
+    void write(V v, ByteBuffer out);
+    V read(ByteBuffer in); //Reads what write wrote, leaving in just past it
+
+    //v once it's at (x, y), whether that's v itself changed or a copy. Replaying a logged move needs it (see WriteAheadLog), so every codec has to say how
+    V moved(V v, int x, int y);
+}
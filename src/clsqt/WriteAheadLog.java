@@ -0,0 +1,369 @@
+package clsqt;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+//Keeps a Quadtree's writes across a crash: every add, remove and move is logged as it's made, and checkpoint folds the log into a Snapshot
+//Group commit: a write only lands in a buffer on the caller's thread. Our own writer thread takes the buffer every syncMillis, or as soon as it holds syncBytes,
+//writes it out as one frame and forces it to disk - so nobody waits on fsync, and a crash loses the last syncMillis or so. sync waits, for when that's too much
+//In dir, snapshot.<g> holds everything before log.<g>, and the logs from g up are replayed over it in order, runs of adds and removes through addAll and removeAll
+//A frame is its payload's length and CRC32 (ints) and then its records: op (byte), the cell's key on the tree's curve (long), the value. A move's key is where it went
+//A frame a crash cut short fails its check, and replay of that log stops there
+//Writes are synchronized so the log has them in the order the tree got them, but like the Quadtree itself, reads mustn't overlap them
+public class WriteAheadLog<V extends Cartesian> implements Closeable {
+    private static final byte ADD = 0, REMOVE = 1, MOVE = 2;
+    private static final int FRAME_HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int RECORD_HEADER_BYTES = 1 + Long.BYTES;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    private final Path dir;
+    private final ValueCodec<V> codec;
+    private final Quadtree<V> tree;
+    private final int syncMillis; //How long a write can sit in the buffer before it's on disk
+    private final int syncBytes; //How much the buffer holds before the writer stops waiting for syncMillis. Callers wait once it's 8 times that
+    private final Thread writer;
+    private final Object lock = new Object(); //Everything from here down is the writer's and the callers' both
+    private long generation;
+    private FileChannel channel; //log.<generation>
+    private ByteBuffer pending, writing; //Callers fill pending; the writer swaps it for writing and empties that
+    private long appended = 0, durable = 0; //How many bytes went into pending so far, and how many of those are on disk
+    private boolean syncRequested, closed;
+    private IOException failure; //Whatever stopped the writer - every write after it throws
+
+    public WriteAheadLog(Path dir, Quadtree<V> fresh, ValueCodec<V> codec) throws Exception {
+        this(dir, fresh, codec, 10, 1 << 20);
+    }
+
+    //Picks up where dir left off: its latest snapshot with the logs after it replayed, or fresh, which should be empty, if there's no snapshot yet
+    //fresh's measure carries over to a tree read from a snapshot
+    public WriteAheadLog(Path dir, Quadtree<V> fresh, ValueCodec<V> codec, int syncMillis, int syncBytes) throws Exception {
+        if (syncMillis < 0 || syncBytes <= 0) {
+            throw new Exception();
+        }
+        this.dir = dir;
+        this.codec = codec;
+        this.syncMillis = syncMillis;
+        this.syncBytes = syncBytes;
+        Files.createDirectories(dir);
+        long snapshotGeneration = latest("snapshot."), logGeneration = latest("log.");
+        tree = (snapshotGeneration < 0) ? fresh : Snapshot.read(dir.resolve("snapshot." + snapshotGeneration), codec, fresh.measure);
+        for (long g = Math.max(snapshotGeneration, 0); g <= logGeneration; g++) {
+            if (Files.exists(dir.resolve("log." + g))) {
+                replay(dir.resolve("log." + g));
+            }
+        }
+        //Never appends to an old log, whose end may be a torn frame
+        generation = Math.max(snapshotGeneration, logGeneration) + 1;
+        channel = openLog(generation);
+        pending = ByteBuffer.allocate(2 * syncBytes).order(ORDER);
+        writing = ByteBuffer.allocate(2 * syncBytes).order(ORDER);
+        writer = new Thread(this::writeLoop, "wal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //For queries - writes go through us
+    public Quadtree<V> getTree() {
+        return tree;
+    }
+
+    public synchronized boolean add(V c) {
+        checkFailure();
+        tree.add(c);
+        append(ADD, tree.origin.keyAt(c.getX(), c.getY()), c);
+        return true;
+    }
+
+    public synchronized boolean addAll(Collection<V> values) {
+        checkFailure();
+        tree.addAll(values);
+        for (V c : values) {
+            append(ADD, tree.origin.keyAt(c.getX(), c.getY()), c);
+        }
+        return true;
+    }
+
+    public synchronized boolean remove(V c) {
+        checkFailure();
+        if (!tree.remove(c)) {
+            return false;
+        }
+        append(REMOVE, tree.origin.keyAt(c.getX(), c.getY()), c);
+        return true;
+    }
+
+    //Every value is logged, removed or not: replaying them against the same tree takes out the same ones
+    public synchronized int removeAll(Collection<V> values) {
+        checkFailure();
+        int removed = tree.removeAll(values);
+        for (V c : values) {
+            append(REMOVE, tree.origin.keyAt(c.getX(), c.getY()), c);
+        }
+        return removed;
+    }
+
+    //Quadtree.move's contract. value is logged where it was, so replaying it needs the codec's moved
+    public synchronized boolean move(V value, int newX, int newY) {
+        checkFailure();
+        if (!tree.move(value, newX, newY)) {
+            return false;
+        }
+        append(MOVE, tree.origin.keyAt(newX, newY), value);
+        return true;
+    }
+
+    //Folds everything so far into a new snapshot, then drops the files that made it redundant. Writes wait for all of it, snapshot included
+    //A crash part way leaves the old snapshot and every log after it, so nothing is lost either way
+    public synchronized void checkpoint() throws IOException {
+        sync();
+        long next = generation + 1;
+        FileChannel nextChannel = openLog(next), oldChannel;
+        synchronized (lock) {
+            oldChannel = channel;
+            channel = nextChannel;
+            generation = next;
+        }
+        oldChannel.close();
+        Snapshot.write(tree, dir.resolve("snapshot." + next), codec);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                long g = Math.max(generationOf(file, "snapshot."), generationOf(file, "log."));
+                if (g >= 0 && g < next) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    //Waits until every write so far is on disk
+    public void sync() throws IOException {
+        synchronized (lock) {
+            long upTo = appended;
+            syncRequested = true;
+            lock.notifyAll();
+            while (durable < upTo && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        sync();
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void checkFailure() {
+        synchronized (lock) {
+            if (failure != null) {
+                throw new UncheckedIOException(failure);
+            }
+        }
+    }
+
+    private void append(byte op, long key, V c) {
+        int bytes = RECORD_HEADER_BYTES + codec.size(c);
+        boolean interrupted = false;
+        synchronized (lock) {
+            //Only if the disk can't keep up - better a slow caller than no memory
+            while (pending.position() >= 8 * syncBytes && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (pending.remaining() < bytes) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(2 * pending.capacity(), pending.position() + bytes)).order(ORDER);
+                pending.flip();
+                pending = grown.put(pending);
+            }
+            pending.put(op).putLong(key);
+            codec.write(c, pending);
+            appended += bytes;
+            if (pending.position() >= syncBytes) {
+                lock.notifyAll();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES).order(ORDER), frame;
+        ByteBuffer[] buffers = {header, null};
+        CRC32 crc = new CRC32();
+        FileChannel target;
+        long upTo, wait;
+        while (true) {
+            synchronized (lock) {
+                try {
+                    while (pending.position() == 0 && !closed) {
+                        lock.wait();
+                    }
+                    //The first write in the buffer waits at most syncMillis for company
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(syncMillis);
+                    while (pending.position() < syncBytes && !syncRequested && !closed && (wait = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                    }
+                } catch (InterruptedException e) {
+                    failure = new InterruptedIOException();
+                    lock.notifyAll();
+                    return;
+                }
+                if (pending.position() == 0) {
+                    return;
+                }
+                frame = pending;
+                pending = writing.clear();
+                writing = frame;
+                syncRequested = false;
+                target = channel;
+                upTo = appended;
+                lock.notifyAll();
+            }
+            frame.flip();
+            crc.reset();
+            crc.update(frame.duplicate());
+            header.clear();
+            header.putInt(frame.remaining()).putInt((int) crc.getValue()).flip();
+            buffers[1] = frame;
+            try {
+                while (frame.hasRemaining()) {
+                    target.write(buffers);
+                }
+                target.force(false);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            synchronized (lock) {
+                durable = upTo;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    //Runs of the same op go in one batch; a move is a remove and an add, the remove made before moved can change the value
+    private void replay(Path log) throws IOException {
+        ArrayList<V> run = new ArrayList<>();
+        byte runOp = ADD, op;
+        long key;
+        V c;
+        Pair<Integer, Integer> cell;
+        try (FileChannel in = FileChannel.open(log, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES).order(ORDER);
+            CRC32 crc = new CRC32();
+            long position = 0, size = in.size();
+            int bytes, check;
+            while (position + FRAME_HEADER_BYTES <= size) {
+                header.clear();
+                while (header.hasRemaining()) {
+                    in.read(header, position + header.position());
+                }
+                header.flip();
+                bytes = header.getInt();
+                check = header.getInt();
+                if (bytes < 0 || position + FRAME_HEADER_BYTES + bytes > size) {
+                    break;
+                }
+                MappedByteBuffer frame = in.map(FileChannel.MapMode.READ_ONLY, position + FRAME_HEADER_BYTES, bytes);
+                frame.order(ORDER);
+                crc.reset();
+                crc.update(frame.duplicate());
+                if ((int) crc.getValue() != check) {
+                    break;
+                }
+                while (frame.hasRemaining()) {
+                    op = frame.get();
+                    key = frame.getLong();
+                    c = codec.read(frame);
+                    if (op != runOp || op == MOVE) {
+                        applyRun(runOp, run);
+                        runOp = op;
+                    }
+                    if (op == MOVE) {
+                        tree.remove(c);
+                        cell = tree.origin.cellAt(key);
+                        runOp = ADD;
+                        c = codec.moved(c, cell.getL(), cell.getR());
+                    }
+                    run.add(c);
+                }
+                position += FRAME_HEADER_BYTES + bytes;
+            }
+        }
+        applyRun(runOp, run);
+    }
+
+    private void applyRun(byte op, ArrayList<V> run) {
+        if (run.isEmpty()) {
+            return;
+        }
+        if (op == ADD) {
+            tree.addAll(run);
+        }
+        else {
+            tree.removeAll(run);
+        }
+        run.clear();
+    }
+
+    private FileChannel openLog(long g) throws IOException {
+        return FileChannel.open(dir.resolve("log." + g), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    //The highest generation of file with prefix in dir, or -1 if there's none
+    private long latest(String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(file -> generationOf(file, prefix)).max().orElse(-1);
+        }
+    }
+
+    //-1 for anything else, including the .tmp of a snapshot that didn't finish
+    private static long generationOf(Path file, String prefix) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}